@@ -0,0 +1,182 @@
+package lox;
+
+import java.util.List;
+
+// Prints the tree in a lisp-ish way, one top level statement per line:
+//   (var x (+ 1 (group (* 2 3))))
+// Used by --dump-ast to see what the Optimizer did.
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String>{
+
+    String print(Stmt stmt){
+        return stmt.accept(this);
+    }
+
+    String print(Expr expr){
+        return expr.accept(this);
+    }
+
+    private String parenthesize(String name, Object... parts){
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(name);
+        for (Object part : parts) {
+            builder.append(" ");
+            if (part instanceof Expr) {
+                builder.append(print((Expr)part));
+            } else if (part instanceof Stmt) {
+                builder.append(print((Stmt)part));
+            } else if (part instanceof List) {
+                builder.append(list((List<?>)part));
+            } else {
+                builder.append(part);
+            }
+        }
+        return builder.append(")").toString();
+    }
+
+    private String list(List<?> items){
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                builder.append(" ");
+            }
+            Object item = items.get(i);
+            if (item instanceof Expr) {
+                builder.append(print((Expr)item));
+            } else if (item instanceof Stmt) {
+                builder.append(print((Stmt)item));
+            } else {
+                builder.append(((token)item).lexemme);
+            }
+        }
+        return builder.append("]").toString();
+    }
+
+    // Statements
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt){
+        return parenthesize("block", stmt.statements);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt){
+        if (stmt.superclass != null) {
+            return parenthesize("class", stmt.name.lexemme, "<", stmt.superclass.name.lexemme, stmt.methods);
+        }
+        return parenthesize("class", stmt.name.lexemme, stmt.methods);
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt){
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt){
+        return parenthesize("fun", stmt.name.lexemme, stmt.params, stmt.body);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt){
+        if (stmt.elseBranch == null) {
+            return parenthesize("if", stmt.condition, stmt.thenBranch);
+        }
+        return parenthesize("if", stmt.condition, stmt.thenBranch, stmt.elseBranch);
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt){
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt){
+        if (stmt.value == null) {
+            return "(return)";
+        }
+        return parenthesize(stmt.tailCall ? "return-tail" : "return", stmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt){
+        if (stmt.initializer == null) {
+            return parenthesize("var", stmt.name.lexemme);
+        }
+        return parenthesize("var", stmt.name.lexemme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt){
+        return parenthesize(stmt.counted ? "while-counted" : "while", stmt.condition, stmt.body);
+    }
+
+    // Expressions
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr){
+        return parenthesize("=", expr.name.lexemme, expr.value);
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr){
+        return parenthesize(expr.operator.lexemme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr){
+        return parenthesize("call", expr.callee, expr.arguments);
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr){
+        return parenthesize(".", expr.object, expr.name.lexemme);
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr){
+        return parenthesize("group", expr.expression);
+    }
+
+    @Override
+    public String visitInlineExpr(Expr.Inline expr){
+        return parenthesize("inline", expr.function.lexemme, expr.body);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr){
+        if (expr.value instanceof String) {
+            return "\"" + expr.value + "\"";
+        }
+        return Interpreter.stringify(expr.value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr){
+        return parenthesize(expr.operator.lexemme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr){
+        return parenthesize("=", expr.object, expr.name.lexemme, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr){
+        return "super." + expr.method.lexemme;
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr){
+        return "this";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr){
+        return parenthesize(expr.operator.lexemme, expr.right);
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr){
+        return expr.name.lexemme;
+    }
+}
@@ -0,0 +1,639 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import static lox.OpCode.*;
+
+// Turns the (already resolved) syntax tree into bytecode for the VM.
+// Works like the Resolver: locals live in stack slots of the current function,
+// variables from enclosing functions are reached through upvalues,
+// everything else is a global looked up by name.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType{
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        int depth; // -1 while its initializer is still running
+        boolean isCaptured = false;
+
+        Local(String name, int depth){
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal){
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // One per function being compiled, they nest like the functions do
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VM.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VM.Function function, FunctionType type){
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot 0 holds the function itself, or the receiver inside methods
+            boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing){
+            this.enclosing = enclosing;
+        }
+    }
+
+    private FunctionState current = null;
+    private ClassState currentClass = null;
+    private int line = 1;
+    private boolean hadError = false;
+
+    // Returns null if something didnt fit in the bytecode format
+    VM.Function compile(List<Stmt> stmts){
+        current = new FunctionState(null, new VM.Function("script"), FunctionType.SCRIPT);
+        for (Stmt stmt : stmts) {
+            compile(stmt);
+        }
+        VM.Function script = endFunction();
+        return hadError ? null : script;
+    }
+
+    private void compile(Stmt stmt){
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt){
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt){
+        line = stmt.name.line;
+        int nameConstant = identifierConstant(stmt.name.lexemme);
+        declareVariable(stmt.name.lexemme);
+
+        emitOp(CLASS);
+        emitShort(nameConstant);
+        defineVariable(nameConstant);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            namedVariable(stmt.superclass.name.lexemme, false);
+
+            // "super" is a local of a scope wrapped around the methods, same as in the interpreter
+            beginScope();
+            addLocal("super");
+            markInitialized();
+
+            namedVariable(stmt.name.lexemme, false);
+            emitOp(INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        // Keep the class on the stack while its methods get attached
+        namedVariable(stmt.name.lexemme, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexemme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOp(METHOD);
+            emitShort(identifierConstant(method.name.lexemme));
+        }
+        emitOp(POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt){
+        compile(stmt.expression);
+        emitOp(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt){
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name.lexemme);
+        // A function can refer to itself, so its ready before the body is compiled
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt){
+        compile(stmt.condition);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        emitOp(POP);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt){
+        compile(stmt.expression);
+        emitOp(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt){
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt){
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name.lexemme);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(NIL);
+        }
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt){
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitOp(POP);
+        return null;
+    }
+
+    // Expressions
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr){
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name.lexemme, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:    emitOp(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emitOp(EQUAL); break;
+            case GREATER:       emitOp(GREATER); break;
+            case GREATER_EQUAL: emitOp(GREATER_EQUAL); break;
+            case LESS:          emitOp(LESS); break;
+            case LESS_EQUAL:    emitOp(LESS_EQUAL); break;
+            case PLUS:          emitOp(ADD); break;
+            case MINUS:         emitOp(SUBTRACT); break;
+            case STAR:          emitOp(MULTIPLY); break;
+            case SLASH:         emitOp(DIVIDE); break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr){
+        // obj.method(...) and super.method(...) skip making a bound method
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            int name = identifierConstant(get.name.lexemme);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitOp(INVOKE);
+            emitShort(name);
+            emitByte(expr.arguments.size());
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            int name = identifierConstant(superExpr.method.lexemme);
+            namedVariable("this", false);
+            compileArguments(expr.arguments);
+            namedVariable("super", false);
+            line = expr.paren.line;
+            emitOp(SUPER_INVOKE);
+            emitShort(name);
+            emitByte(expr.arguments.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emitOp(CALL);
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments){
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr){
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(GET_PROPERTY);
+        emitShort(identifierConstant(expr.name.lexemme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr){
+        // No guard instruction here, it stays a real call
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        if (expr.value == null) {
+            emitOp(NIL);
+        } else if (expr.value.equals(true)) {
+            emitOp(TRUE);
+        } else if (expr.value.equals(false)) {
+            emitOp(FALSE);
+        } else {
+            emitOp(CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr){
+        compile(expr.left);
+        if (expr.operator.type == tokenType.OR) {
+            // Truthy left side jumps over the right side and stays as the result
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            emitOp(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emitOp(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr){
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(SET_PROPERTY);
+        emitShort(identifierConstant(expr.name.lexemme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr){
+        int name = identifierConstant(expr.method.lexemme);
+        namedVariable("this", false);
+        namedVariable("super", false);
+        line = expr.method.line;
+        emitOp(GET_SUPER);
+        emitShort(name);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr){
+        namedVariable("this", false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == tokenType.BANG) {
+            emitOp(NOT);
+        } else {
+            emitOp(NEGATE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr){
+        line = expr.name.line;
+        namedVariable(expr.name.lexemme, false);
+        return null;
+    }
+
+    // Functions
+
+    private void function(Stmt.Function stmt, FunctionType type){
+        VM.Function function = new VM.Function(stmt.name.lexemme);
+        function.arity = stmt.params.size();
+        current = new FunctionState(current, function, type);
+        beginScope();
+
+        for (token param : stmt.params) {
+            line = param.line;
+            int constant = parseVariable(param.lexemme);
+            defineVariable(constant);
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        // No endScope(): returning throws the whole frame away anyway
+        FunctionState state = current;
+        endFunction();
+
+        emitOp(CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private VM.Function endFunction(){
+        emitReturn();
+        VM.Function function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void emitReturn(){
+        if (current.type == FunctionType.INITIALIZER) {
+            // init() always hands back the instance
+            emitOp(GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(NIL);
+        }
+        emitOp(RETURN);
+    }
+
+    // Variables
+
+    private void beginScope(){
+        current.scopeDepth++;
+    }
+
+    private void endScope(){
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(CLOSE_UPVALUE);
+            } else {
+                emitOp(POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Returns the name constant for globals, locals dont need one
+    private int parseVariable(String name){
+        declareVariable(name);
+        if (current.scopeDepth > 0) {
+            return 0;
+        }
+        return identifierConstant(name);
+    }
+
+    private void declareVariable(String name){
+        if (current.scopeDepth == 0) {
+            return;
+        }
+        addLocal(name);
+    }
+
+    private void addLocal(String name){
+        if (current.locals.size() == 256) {
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized(){
+        if (current.scopeDepth == 0) {
+            return;
+        }
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(int global){
+        if (current.scopeDepth > 0) {
+            // The value is already sitting in the local's slot
+            markInitialized();
+            return;
+        }
+        emitOp(DEFINE_GLOBAL);
+        emitShort(global);
+    }
+
+    private void namedVariable(String name, boolean assign){
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            getOp = GET_LOCAL;
+            setOp = SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            getOp = GET_UPVALUE;
+            setOp = SET_UPVALUE;
+        } else {
+            emitOp(assign ? SET_GLOBAL : GET_GLOBAL);
+            emitShort(identifierConstant(name));
+            return;
+        }
+        emitOp(assign ? setOp : getOp);
+        emitByte(arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name){
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name){
+        if (state.enclosing == null) {
+            return -1;
+        }
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal){
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() == 256) {
+            error("Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    // Emitting
+
+    private Chunk currentChunk(){
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b){
+        currentChunk().write((byte)b, line);
+    }
+
+    private void emitOp(byte op){
+        currentChunk().write(op, line);
+    }
+
+    private void emitShort(int value){
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private int emitJump(byte op){
+        emitOp(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset){
+        // -2 to adjust for the jump offset itself
+        int jump = currentChunk().count - offset - 2;
+        if (jump > 0xffff) {
+            error("Too much code to jump over.");
+        }
+        currentChunk().code[offset] = (byte)((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart){
+        emitOp(LOOP);
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > 0xffff) {
+            error("Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value){
+        int constant = currentChunk().addConstant(value);
+        if (constant == -1) {
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private int identifierConstant(String name){
+        return makeConstant(name);
+    }
+
+    private void error(String message){
+        jLox.error(line, message);
+        hadError = true;
+    }
+}
@@ -0,0 +1,17 @@
+package lox;
+
+// One variable a function captured from outside (the Resolver fills these in).
+// When the closure is made, the Cell is at (depth, slot) from the environment
+// the function is declared in, and it gets copied into slot target of every
+// frame of the function.
+final class Capture {
+    final int depth;
+    final int slot;
+    final int target;
+
+    Capture(int depth, int slot, int target){
+        this.depth = depth;
+        this.slot = slot;
+        this.target = target;
+    }
+}
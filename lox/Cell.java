@@ -0,0 +1,13 @@
+package lox;
+
+// A local variable some closure captured. The frame that declares it holds
+// the Cell in the variable's slot instead of the value, and every closure
+// gets the same Cell in a slot of its own frame, so they all see assignments.
+// Environment reads and writes through it, only declarations have to know.
+final class Cell {
+    Object value;
+
+    Cell(Object value){
+        this.value = value;
+    }
+}
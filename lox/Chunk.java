@@ -0,0 +1,50 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled function body: the bytecode, the line each byte came from
+// and the constants it refers to.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+
+    // So the same name or number doesnt take a new constant every time
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(byte b, int line){
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    // Returns the index of the constant, or -1 if the pool is full
+    int addConstant(Object value){
+        boolean shareable = value instanceof String || value instanceof Double;
+        if (shareable) {
+            Integer existing = constantIndex.get(value);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        if (constantCount > 0xffff) {
+            return -1;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (shareable) {
+            constantIndex.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
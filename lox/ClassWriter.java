@@ -0,0 +1,318 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for JvmCompiler:
+// a constant pool, methods and their Code attribute, nothing else.
+// Classes are written as version 49 (Java 5) so they dont need stack map frames.
+class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes we actually emit
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DSTORE = 0x39;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName, String... interfaceNames){
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    MethodWriter method(int access, String name, String descriptor){
+        MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor));
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toByteArray(){
+        try {
+            // Before the pool gets written out
+            int code = utf8("Code");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // no fields
+            out.writeShort(methods.size());
+            for (MethodWriter method : methods) {
+                method.writeTo(out, code);
+            }
+            out.writeShort(0); // no class attributes
+            return bytes.toByteArray();
+        } catch (IOException error) {
+            // Only writing to memory, cant happen
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Constant pool, every entry is written once and then reused
+
+    int utf8(String value){
+        return constant("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        }, 1);
+    }
+
+    int classRef(String internalName){
+        int name = utf8(internalName);
+        return constant("C" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        }, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor){
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor){
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    int doubleConstant(double value){
+        return constant("D" + Double.doubleToRawLongBits(value), out -> {
+            out.writeByte(6);
+            out.writeDouble(value);
+        }, 2); // doubles take two entries
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor){
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        }, 1);
+        return constant(tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        }, 1);
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, Entry entry, int size){
+        Integer existing = poolIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (poolCount + size > 0xffff) {
+            throw new IllegalStateException("Constant pool overflow.");
+        }
+        try {
+            entry.write(poolOut);
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+        int index = poolCount;
+        poolCount += size;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    // A jump target, placed with mark() and patched when the method is written
+    static class Label {
+        private int position = -1;
+        private final List<int[]> fixups = new ArrayList<>(); // {instruction, operand}
+    }
+
+    // The bytecode of one method. Keeps track of the stack depth
+    // as it goes so max_stack comes out right.
+    static class MethodWriter {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals = 0;
+        private final List<Label> labels = new ArrayList<>();
+
+        private MethodWriter(int access, int name, int descriptor){
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        void locals(int count){
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        // stackChange is how much the instruction grows (or shrinks) the operand stack
+        void op(int opcode, int stackChange){
+            u1(opcode);
+            adjust(stackChange);
+        }
+
+        void op(int opcode, int operand, int stackChange){
+            u1(opcode);
+            u1(operand);
+            adjust(stackChange);
+        }
+
+        void opShort(int opcode, int operand, int stackChange){
+            u1(opcode);
+            u2(operand);
+            adjust(stackChange);
+        }
+
+        void invokeInterface(int method, int argumentSlots, int stackChange){
+            u1(INVOKEINTERFACE);
+            u2(method);
+            u1(argumentSlots + 1);
+            u1(0);
+            adjust(stackChange);
+        }
+
+        void jump(int opcode, Label target, int stackChange){
+            target.fixups.add(new int[] { length, length + 1 });
+            u1(opcode);
+            u2(0);
+            adjust(stackChange);
+        }
+
+        Label newLabel(){
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void mark(Label label){
+            label.position = length;
+        }
+
+        // Jumps leave the stack at zero in everything JvmCompiler generates
+        void resetStack(){
+            stack = 0;
+        }
+
+        private void adjust(int change){
+            stack += change;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value){
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte)value;
+        }
+
+        private void u2(int value){
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void writeTo(DataOutputStream out, int codeAttribute) throws IOException{
+            if (length > 0xffff) {
+                throw new IllegalStateException("Method too large.");
+            }
+            patchJumps();
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0); // no exception table
+            out.writeShort(0); // no attributes
+        }
+
+        private void patchJumps(){
+            for (Label label : labels) {
+                if (label.position < 0) {
+                    throw new IllegalStateException("Unplaced label.");
+                }
+                for (int[] fixup : label.fixups) {
+                    int offset = label.position - fixup[0];
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("Jump too far.");
+                    }
+                    code[fixup[1]] = (byte)(offset >> 8);
+                    code[fixup[1] + 1] = (byte)offset;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Walks the resolved tree once and turns every node into a small lambda.
+// The operator, the slot of a variable, the frame size of a block...
+// all of it is decided here, so running a node is just calling the lambda.
+// Uses the same runtime objects as the Interpreter (Environment, LoxClass, LoxInstance).
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode> {
+
+    interface ExprNode {
+        Object eval(Environment env);
+    }
+
+    interface StmtNode {
+        // True when a return statement ran, its value is in interpreter.returnValue
+        boolean exec(Environment env);
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    // Binary operators become self-specializing nodes (see SpecializingBinary)
+    private final boolean specialize;
+
+    // Globals and natives are shared with the interpreter
+    ClosureCompiler(Interpreter interpreter, boolean specialize){
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.specialize = specialize;
+    }
+
+    void interpret(List<Stmt> stmts){
+        List<StmtNode> program = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            program.add(compile(stmt));
+        }
+        try {
+            for (StmtNode node : program) {
+                node.exec(globals);
+            }
+        } catch (RuntimeError error) {
+            jLox.runtimeError(error);
+        }
+    }
+
+    private ExprNode compile(Expr expr){
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt){
+        return stmt.accept(this);
+    }
+
+    private StmtNode[] compileAll(List<Stmt> stmts){
+        StmtNode[] nodes = new StmtNode[stmts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(stmts.get(i));
+        }
+        return nodes;
+    }
+
+    // A Lox function whose body was compiled into nodes
+    static class CompiledFunction extends LoxFunction {
+        private final StmtNode[] body;
+
+        CompiledFunction(Stmt.Function declaration, StmtNode[] body, Cell[] cells, boolean isInitializer){
+            this(declaration, body, cells, isInitializer, null);
+        }
+
+        private CompiledFunction(Stmt.Function declaration, StmtNode[] body, Cell[] cells, boolean isInitializer, LoxInstance receiver){
+            super(declaration, cells, isInitializer, receiver);
+            this.body = body;
+        }
+
+        @Override
+        LoxFunction bind(LoxInstance instance){
+            return new CompiledFunction(declaration, body, cells, isInitializer, instance);
+        }
+
+        @Override
+        Object run(Interpreter interpreter, Environment frame, LoxInstance receiver){
+            box(frame);
+            execute(interpreter, frame);
+            return finish(interpreter, frame, receiver);
+        }
+
+        @Override
+        void execute(Interpreter interpreter, Environment environment){
+            for (StmtNode stmt : body) {
+                if (stmt.exec(environment)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Statements
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt){
+        StmtNode[] body = compileAll(stmt.statements);
+        int frameSize = stmt.frameSize;
+        FramePool frames = stmt.frames;
+        if (frames != null) {
+            return env -> {
+                Environment inner = frames.take(env);
+                for (StmtNode node : body) {
+                    if (node.exec(inner)) {
+                        frames.give(inner);
+                        return true;
+                    }
+                }
+                frames.give(inner);
+                return false;
+            };
+        }
+        return env -> {
+            Environment inner = new Environment(env, frameSize);
+            for (StmtNode node : body) {
+                if (node.exec(inner)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt){
+        ExprNode superclassNode = stmt.superclass == null ? null : compile(stmt.superclass);
+        token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        String name = stmt.name.lexemme;
+
+        List<Stmt.Function> declarations = stmt.methods;
+        List<StmtNode[]> bodies = new ArrayList<>();
+        for (Stmt.Function method : declarations) {
+            bodies.add(compileAll(method.body));
+        }
+        Definer define = definer(stmt.slot, stmt.name);
+        boolean captured = stmt.captured;
+        int slot = stmt.slot;
+
+        return env -> {
+            Object superclass = null;
+            if (superclassNode != null) {
+                superclass = superclassNode.eval(env);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+            }
+
+            // Methods that use the class's own name capture it before it has a value
+            Cell self = captured ? new Cell(null) : null;
+            if (captured) {
+                env.define(slot, self);
+            }
+            Environment methodEnv = env;
+            if (superclass != null) {
+                methodEnv = new Environment(env, 1);
+                methodEnv.define(0, new Cell(superclass));
+            }
+
+            Map<Symbol, LoxFunction> methods = new HashMap<>();
+            for (int i = 0; i < declarations.size(); i++) {
+                Stmt.Function method = declarations.get(i);
+                boolean isInit = method.name.symbol == Symbol.INIT;
+                Cell[] cells = LoxFunction.capture(method, methodEnv);
+                methods.put(method.name.symbol, new CompiledFunction(method, bodies.get(i), cells, isInit));
+            }
+            LoxClass klass = new LoxClass(name, (LoxClass)superclass, methods);
+            if (captured) {
+                self.value = klass;
+            } else {
+                define.define(env, klass);
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt){
+        ExprNode expression = compile(stmt.expression);
+        return env -> {
+            expression.eval(env);
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt){
+        StmtNode[] body = compileAll(stmt.body);
+        Definer define = definer(stmt.slot, stmt.name);
+        if (stmt.captured) {
+            // It uses itself (or a closure made later does): the Cell has to exist first
+            int slot = stmt.slot;
+            return env -> {
+                Cell cell = new Cell(null);
+                env.define(slot, cell);
+                cell.value = new CompiledFunction(stmt, body, LoxFunction.capture(stmt, env), false);
+                return false;
+            };
+        }
+        return env -> {
+            define.define(env, new CompiledFunction(stmt, body, LoxFunction.capture(stmt, env), false));
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt){
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return env -> Interpreter.isTruthy(condition.eval(env)) && thenBranch.exec(env);
+        }
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return env -> {
+            if (Interpreter.isTruthy(condition.eval(env))) {
+                return thenBranch.exec(env);
+            }
+            return elseBranch.exec(env);
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt){
+        ExprNode expression = compile(stmt.expression);
+        return env -> {
+            System.out.println(Interpreter.stringify(expression.eval(env)));
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt){
+        if (stmt.value == null) {
+            return env -> {
+                interpreter.returnValue = null;
+                return true;
+            };
+        }
+        // A tail call sets up interpreter.tailCall instead of calling, see LoxFunction.trampoline
+        ExprNode value = stmt.tailCall ? compileCall((Expr.Call)stmt.value, true) : compile(stmt.value);
+        return env -> {
+            interpreter.returnValue = value.eval(env);
+            return true;
+        };
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt){
+        int slot = stmt.slot;
+        Definer define = stmt.captured
+            ? (env, value) -> env.define(slot, new Cell(value))
+            : definer(slot, stmt.name);
+        if (stmt.initializer == null) {
+            return env -> {
+                define.define(env, null);
+                return false;
+            };
+        }
+        ExprNode initializer = compile(stmt.initializer);
+        return env -> {
+            define.define(env, initializer.eval(env));
+            return false;
+        };
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt){
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = compile(stmt.body);
+        return env -> {
+            while (Interpreter.isTruthy(condition.eval(env))) {
+                if (body.exec(env)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private interface Definer {
+        void define(Environment env, Object value);
+    }
+
+    // Slot -1 means the Resolver saw a global declaration
+    private Definer definer(int slot, token name){
+        if (slot < 0) {
+            Cell global = globals.global(name.symbol);
+            return (env, value) -> global.value = value;
+        }
+        return (env, value) -> env.define(slot, value);
+    }
+
+    // Expressions
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr){
+        ExprNode value = compile(expr.value);
+        int depth = expr.depth;
+        int slot = expr.slot;
+        token name = expr.name;
+        if (depth < 0) {
+            Cell global = globals.global(name.symbol);
+            return env -> {
+                Object result = value.eval(env);
+                globals.assign(global, name, result);
+                return result;
+            };
+        }
+        if (depth == 0) {
+            return env -> {
+                Object result = value.eval(env);
+                env.assignAt(0, slot, result);
+                return result;
+            };
+        }
+        return env -> {
+            Object result = value.eval(env);
+            env.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr){
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        token operator = expr.operator;
+        if (specialize) {
+            return new SpecializingBinary(operator, left, right);
+        }
+        // A lambda per operator that does two numbers itself, everything else
+        // (strings, ==, type errors) goes by the shared rules in Interpreter.binary
+        switch (operator.type) {
+            case GREATER:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l > (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l >= (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case LESS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l < (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case LESS_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l <= (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case MINUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l - (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l + (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case SLASH:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l / (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l * (double)r;
+                    }
+                    return Interpreter.binary(operator, l, r);
+                };
+            default:
+                return env -> Interpreter.binary(operator, left.eval(env), right.eval(env));
+        }
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr){
+        return compileCall(expr, false);
+    }
+
+    private ExprNode compileCall(Expr.Call expr, boolean tail){
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        token paren = expr.paren;
+        if (expr.callee instanceof Expr.Get) {
+            return invokeNode((Expr.Get)expr.callee, arguments, paren, tail);
+        }
+        if (expr.callee instanceof Expr.Super) {
+            return superInvokeNode((Expr.Super)expr.callee, arguments, paren, tail);
+        }
+        ExprNode callee = compile(expr.callee);
+
+        return env -> {
+            Object function = callee.eval(env);
+            if (function instanceof LoxFunction && ((LoxFunction)function).arity() == arguments.length) {
+                LoxFunction loxFunction = (LoxFunction)function;
+                return callFunction(loxFunction, loxFunction.receiver, arguments, env, tail);
+            }
+            return callValue(paren, function, evalArguments(arguments, env));
+        };
+    }
+
+    // obj.method(...), calls the method with its receiver without binding it
+    private ExprNode invokeNode(Expr.Get get, ExprNode[] arguments, token paren, boolean tail){
+        ExprNode object = compile(get.object);
+        token name = get.name;
+        InlineCache cache = get.cache;
+        return env -> {
+            Object obj = object.eval(env);
+            if (!(obj instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+            LoxInstance instance = (LoxInstance)obj;
+            LoxFunction method = cache.method(instance, name);
+            if (method != null && method.arity() == arguments.length) {
+                return callFunction(method, instance, arguments, env, tail);
+            }
+            Object function = method != null ? method : cache.get(instance, name);
+            List<Object> values = evalArguments(arguments, env);
+            if (method != null) {
+                checkArity(paren, method, values);
+                return method.invoke(interpreter, instance, values);
+            }
+            return callValue(paren, function, values);
+        };
+    }
+
+    // super.method(...), same idea
+    private ExprNode superInvokeNode(Expr.Super expr, ExprNode[] arguments, token paren, boolean tail){
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int thisSlot = expr.thisSlot;
+        token name = expr.method;
+        InlineCache cache = expr.cache;
+        return env -> {
+            LoxClass superclass = (LoxClass)env.getAt(depth, slot);
+            LoxInstance object = (LoxInstance)env.getAt(depth, thisSlot);
+            LoxFunction method = cache.findMethod(superclass, name.symbol);
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property '"+name.lexemme+"'.");
+            }
+            if (method.arity() == arguments.length) {
+                return callFunction(method, object, arguments, env, tail);
+            }
+            List<Object> values = evalArguments(arguments, env);
+            checkArity(paren, method, values);
+            return method.invoke(interpreter, object, values);
+        };
+    }
+
+    // The arguments get evaluated straight into the callee's frame, no List
+    private Object callFunction(LoxFunction function, LoxInstance self, ExprNode[] arguments, Environment env, boolean tail){
+        Environment frame = function.frame(self);
+        int slot = LoxFunction.firstParameter(self);
+        for (ExprNode argument : arguments) {
+            frame.define(slot++, argument.eval(env));
+        }
+        if (tail) {
+            interpreter.tailCall = function;
+            interpreter.tailFrame = frame;
+            interpreter.tailReceiver = self;
+            return null;
+        }
+        return function.run(interpreter, frame, self);
+    }
+
+    private static List<Object> evalArguments(ExprNode[] arguments, Environment env){
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (ExprNode argument : arguments) {
+            values.add(argument.eval(env));
+        }
+        return values;
+    }
+
+    private static void checkArity(token paren, LoxCallable callable, List<Object> values){
+        if (values.size() != callable.arity()) {
+            throw new RuntimeError(paren, "Expected "+callable.arity()+" arguments but got "+values.size()+".");
+        }
+    }
+
+    private Object callValue(token paren, Object function, List<Object> values){
+        if (!(function instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call funcions and classes.");
+        }
+        LoxCallable callable = (LoxCallable)function;
+        checkArity(paren, callable, values);
+        return callable.call(interpreter, values);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr){
+        ExprNode object = compile(expr.object);
+        token name = expr.name;
+        InlineCache cache = expr.cache;
+        return env -> {
+            Object obj = object.eval(env);
+            if (obj instanceof LoxInstance) {
+                return cache.get((LoxInstance)obj, name);
+            }
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr){
+        // Parenthesis dont need a node of their own
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitInlineExpr(Expr.Inline expr){
+        ExprNode call = compile(expr.call);
+        ExprNode body = compile(expr.body);
+        return env -> Interpreter.stillInlined(globals, expr) ? body.eval(env) : call.eval(env);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr){
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr){
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        if (expr.operator.type == tokenType.OR) {
+            return env -> {
+                Object l = left.eval(env);
+                return Interpreter.isTruthy(l) ? l : right.eval(env);
+            };
+        }
+        return env -> {
+            Object l = left.eval(env);
+            return !Interpreter.isTruthy(l) ? l : right.eval(env);
+        };
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr){
+        ExprNode object = compile(expr.object);
+        ExprNode value = compile(expr.value);
+        token name = expr.name;
+        InlineCache cache = expr.cache;
+        return env -> {
+            Object obj = object.eval(env);
+            if (!(obj instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.eval(env);
+            cache.set((LoxInstance)obj, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr){
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int thisSlot = expr.thisSlot;
+        token method = expr.method;
+        InlineCache cache = expr.cache;
+        return env -> {
+            LoxClass superclass = (LoxClass)env.getAt(depth, slot);
+            LoxInstance object = (LoxInstance)env.getAt(depth, thisSlot);
+            LoxFunction function = cache.findMethod(superclass, method.symbol);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '"+method.lexemme+"'.");
+            }
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr){
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr){
+        ExprNode right = compile(expr.right);
+        token operator = expr.operator;
+        if (operator.type == tokenType.BANG) {
+            return env -> !Interpreter.isTruthy(right.eval(env));
+        }
+        return env -> {
+            Object value = right.eval(env);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double)value;
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr){
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    // Picks the cheapest way to reach the variable now instead of on every read
+    private ExprNode variable(token name, int depth, int slot){
+        switch (depth) {
+            case -1:
+                Cell global = globals.global(name.symbol);
+                return env -> globals.get(global, name);
+            case 0:
+                return env -> env.getAt(0, slot);
+            case 1:
+                return env -> env.enclosing.getAt(0, slot);
+            default:
+                return env -> env.getAt(depth, slot);
+        }
+    }
+}
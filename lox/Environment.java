@@ -1,50 +1,136 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 // Here the objective is to store variables with its values.
+// Globals each live in a Cell, in an array indexed by the Symbol id of their
+// name. Every other scope is a fixed size frame and the Resolver already told
+// us which slot each variable lives in.
+// A slot can also hold a Cell when a closure captured the variable, reads
+// and writes go through it.
 class Environment {
     Environment(){
         enclosing = null;
+        values = new Cell[Math.max(64, Symbol.count())];
+        slots = null;
     }
 
-    Environment(Environment enclosing){
+    Environment(Environment enclosing, int size){
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
     }
 
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();    
-    
+    // Not final so a FramePool can hand the same frame to the next call
+    Environment enclosing;
+    private Cell[] values;
+    private final Object[] slots;
+    // Numbers can sit unboxed in a frame: the slot holds UNBOXED and the
+    // double itself is in numbers[], which only gets allocated once it's used
+    private static final Object UNBOXED = new Object();
+    private double[] numbers;
+    // What a global's Cell holds before its declaration ran
+    private static final Object UNDEFINED = new Object();
+
+
+    // The Cell of a global. Its made on the first lookup even if the global
+    // isnt declared yet, so a Variable can keep it and still see a later
+    // declaration. Cells never go away, a global cant be undeclared.
+    Cell global(Symbol name){
+        if (name.id >= values.length) {
+            values = Arrays.copyOf(values, Math.max(name.id + 1, values.length * 2));
+        }
+        Cell cell = values[name.id];
+        if (cell == null) {
+            cell = new Cell(UNDEFINED);
+            values[name.id] = cell;
+        }
+        return cell;
+    }
 
     Object get(token name){
-        if (values.containsKey(name.lexemme)) {
-            return values.get(name.lexemme);
+        return get(global(name.symbol), name);
+    }
+
+    Object get(Cell global, token name){
+        Object value = global.value;
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '"+ name.lexemme + "'.");
         }
+        return value;
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    // Like get() but null instead of an error, for checks that must not fail
+    Object getOrNull(Symbol name){
+        Cell cell = name.id < values.length ? values[name.id] : null;
+        return cell == null || cell.value == UNDEFINED ? null : cell.value;
+    }
+
+    void assign (token name, Object value){
+        assign(global(name.symbol), name, value);
+    }
+
+    void assign(Cell global, token name, Object value){
+        if (global.value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable: '" + name.lexemme +"'.");
         }
+        global.value = value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '"+ name.lexemme + "'.");
+    void define(Symbol name, Object value){
+        global(name).value = value;
+    }
 
+    void define(int slot, Object value){
+        slots[slot] = value;
     }
 
-    void assign (token name, Object value){
-        if (values.containsKey(name.lexemme)) {
-            values.put(name.lexemme, value);
+    void defineNumber(int slot, double value){
+        Object current = slots[slot];
+        if (current != UNBOXED && current instanceof Cell) {
+            ((Cell)current).value = value;
             return;
         }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        if (numbers == null) {
+            numbers = new double[slots.length];
+        }
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
+    }
+
+    boolean isNumber(int slot){
+        Object value = slots[slot];
+        if (value == UNBOXED || value instanceof Double) {
+            return true;
+        }
+        return value instanceof Cell && ((Cell)value).value instanceof Double;
+    }
+
+    // Only valid when isNumber(slot)
+    double numberAt(int slot){
+        Object value = slots[slot];
+        if (value == UNBOXED) {
+            return numbers[slot];
+        }
+        if (value instanceof Cell) {
+            return (Double)((Cell)value).value;
         }
-        
-        throw new RuntimeError(name, "Undefined variable: '" + name.lexemme +"'.");
+        return (Double)value;
     }
 
-    void define(String name, Object value){
-        values.put(name, value);
+    // Moves a parameter that got captured into a Cell
+    void box(int slot){
+        slots[slot] = new Cell(getAt(0, slot));
+    }
+
+    // The Cell itself, for making a closure
+    Cell cellAt(int distance, int slot){
+        return (Cell)ancestor(distance).slots[slot];
+    }
+
+    // Back to how a new frame looks, before it goes into a FramePool
+    void clear(){
+        Arrays.fill(slots, null);
     }
 
     Environment ancestor(int distance){
@@ -55,12 +141,26 @@ class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name){
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot){
+        Environment environment = ancestor(distance);
+        Object value = environment.slots[slot];
+        if (value == UNBOXED) {
+            // Someone wants it as an Object after all
+            return environment.numbers[slot];
+        }
+        if (value instanceof Cell) {
+            return ((Cell)value).value;
+        }
+        return value;
     }
 
-    void assignAt(int distance, token name, Object value){
-        ancestor(distance).values.put(name.lexemme, value);
+    void assignAt(int distance, int slot, Object value){
+        Object[] slots = ancestor(distance).slots;
+        if (slots[slot] instanceof Cell) {
+            ((Cell)slots[slot]).value = value;
+        } else {
+            slots[slot] = value;
+        }
     }
 
 }
@@ -8,6 +8,7 @@ abstract class Expr{
     R visitCallExpr(Call expr);
     R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
+    R visitInlineExpr(Inline expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitSetExpr(Set expr);
@@ -29,6 +30,9 @@ abstract class Expr{
 
     final token name;
     final Expr value;
+    int depth;
+    int slot;
+    Cell global;
 }
  static class Binary extends Expr{
     Binary(Expr left,token operator,Expr right) {
@@ -75,6 +79,7 @@ abstract class Expr{
 
     final Expr object;
     final token name;
+    InlineCache cache = new InlineCache();
 }
  static class Grouping extends Expr{
     Grouping(Expr expression) {
@@ -87,6 +92,23 @@ abstract class Expr{
         }
 
     final Expr expression;
+}
+ static class Inline extends Expr{
+    Inline(Call call,token function,Expr body) {
+    this.call= call;
+    this.function= function;
+    this.body= body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visitInlineExpr(this);
+        }
+
+    final Call call;
+    final token function;
+    final Expr body;
+    Cell global;
 }
  static class Literal extends Expr{
     Literal(Object value) {
@@ -131,6 +153,7 @@ abstract class Expr{
     final Expr object;
     final token name;
     final Expr value;
+    InlineCache cache = new InlineCache();
 }
  static class Super extends Expr{
     Super(token keyword,token method) {
@@ -145,6 +168,10 @@ abstract class Expr{
 
     final token keyword;
     final token method;
+    int depth;
+    int slot;
+    int thisSlot;
+    InlineCache cache = new InlineCache();
 }
  static class This extends Expr{
     This(token keyword) {
@@ -157,6 +184,8 @@ abstract class Expr{
         }
 
     final token keyword;
+    int depth;
+    int slot;
 }
  static class Unary extends Expr{
     Unary(token operator,Expr right) {
@@ -183,6 +212,9 @@ abstract class Expr{
         }
 
     final token name;
+    int depth;
+    int slot;
+    Cell global;
 }
 
     abstract <R> R accept(Visitor<R> visitor);
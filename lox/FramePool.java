@@ -0,0 +1,42 @@
+package lox;
+
+import java.util.Arrays;
+
+// Spare frames for one function or block that never makes a closure, so no
+// frame of it can be used after the call or block is done (the Resolver
+// decides, see Resolver.closures). Calls take a frame here and give it back
+// when they return instead of allocating a new Environment every time.
+// Recursion just takes more of them, the pool keeps up to MAX_FREE.
+final class FramePool {
+    private static final int MAX_FREE = 64;
+
+    private final int size;
+    private Environment[] free = new Environment[4];
+    private int count = 0;
+
+    FramePool(int size){
+        this.size = size;
+    }
+
+    Environment take(Environment enclosing){
+        if (count == 0) {
+            return new Environment(enclosing, size);
+        }
+        Environment frame = free[--count];
+        free[count] = null;
+        frame.enclosing = enclosing;
+        return frame;
+    }
+
+    // Only once per take, and only when nothing points at the frame anymore
+    void give(Environment frame){
+        if (count == free.length) {
+            if (count == MAX_FREE) {
+                return;
+            }
+            free = Arrays.copyOf(free, count * 2);
+        }
+        frame.clear();
+        free[count++] = frame;
+    }
+}
@@ -0,0 +1,110 @@
+package lox;
+
+// A per-site cache for property access, hung off Expr.Get, Expr.Set and
+// Expr.Super. It remembers the last few receivers it saw and what the
+// lookup found for them so the next time it's just a few == checks.
+//   Get/Set: keyed by the instance's Shape. Since every class has its own
+//            shapes, the shape also pins down the class and so the method.
+//   Super:   keyed by the superclass.
+// After MAX different receivers the site is megamorphic and it stops caching.
+final class InlineCache {
+    private static final int MAX = 4;
+
+    private final Object[] keys = new Object[MAX];
+    // Field index, or -1 if the entry is a method
+    private final int[] indices = new int[MAX];
+    // The method for a get/super, or the new Shape for a set that adds a field
+    private final Object[] targets = new Object[MAX];
+    private int count = 0;
+
+    Object get(LoxInstance instance, token name){
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) {
+                if (indices[i] >= 0) {
+                    return instance.values[indices[i]];
+                }
+                return ((LoxFunction)targets[i]).bind(instance);
+            }
+        }
+
+        // Miss, do the real lookup
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            add(shape, index, null);
+            return instance.values[index];
+        }
+        LoxFunction method = instance.klass.findMethod(name.symbol);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '"+name.lexemme+"'.");
+        }
+        add(shape, -1, method);
+        return method.bind(instance);
+    }
+
+    // The method get() would bind, or null when the name is a field (or nothing).
+    // Lets obj.method() skip the bound LoxFunction, see Interpreter.visitCallExpr
+    LoxFunction method(LoxInstance instance, token name){
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) {
+                return indices[i] >= 0 ? null : (LoxFunction)targets[i];
+            }
+        }
+
+        if (shape.indexOf(name.symbol) >= 0) {
+            return null;
+        }
+        LoxFunction method = instance.klass.findMethod(name.symbol);
+        if (method != null) {
+            add(shape, -1, method);
+        }
+        return method;
+    }
+
+    void set(LoxInstance instance, token name, Object value){
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) {
+                if (targets[i] != null) {
+                    instance.addField((Shape)targets[i], value);
+                } else {
+                    instance.values[indices[i]] = value;
+                }
+                return;
+            }
+        }
+
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            add(shape, index, null);
+            instance.values[index] = value;
+        } else {
+            Shape next = shape.withField(name.symbol);
+            add(shape, next.size - 1, next);
+            instance.addField(next, value);
+        }
+    }
+
+    // null if the class doesnt have it
+    LoxFunction findMethod(LoxClass klass, Symbol name){
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == klass) {
+                return (LoxFunction)targets[i];
+            }
+        }
+        LoxFunction method = klass.findMethod(name);
+        add(klass, -1, method);
+        return method;
+    }
+
+    private void add(Object key, int index, Object target){
+        if (count == MAX) {
+            return;
+        }
+        keys[count] = key;
+        indices[count] = index;
+        targets[count] = target;
+        count++;
+    }
+}
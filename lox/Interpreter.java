@@ -9,14 +9,24 @@ import javax.management.RuntimeErrorException;
 // to clarify, the interpreter is doing a post-order traversal
 // each node evaluetes its children before doing its own work
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
-    private final Map<Expr, Integer> locals = new HashMap<>();
     final Environment globals = new Environment();
     private Environment environment = globals;
+    // Compiles numeric functions to JVM classes, only set with --jit
+    JvmCompiler jit = null;
+    // A return statement sets these instead of throwing. Blocks and loops
+    // stop as soon as they see returning, and LoxFunction.invoke() takes the value.
+    boolean returning = false;
+    Object returnValue = null;
+    // A tail call leaves the function it wants to jump to here, with its frame
+    // ready, and LoxFunction.trampoline() loops into it
+    LoxFunction tailCall = null;
+    Environment tailFrame = null;
+    LoxInstance tailReceiver = null;
     // private Environment environment = new Environment();
 
     Interpreter(){
         // Native funcions that returns the number of seconds that passed since some point in time
-        globals.define("clock", new LoxCallable() {
+        globals.define(Symbol.intern("clock"), new LoxCallable() {
             @Override
             public int arity() {return 0;}
 
@@ -46,18 +56,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
         return expr.value;
     }
 
-    // Here, evaluate the right operand first and if short circuit, if not, we evaluate the right operand.  
+    // Here, evaluate the left operand first and if short circuit, if not, we evaluate the right operand.  
     @Override
     public Object visitLogicalExpr(Expr.Logical expr){
-        Object left = evaluate(expr);
+        Object left = evaluate(expr.left);
 
         if (expr.operator.type == tokenType.OR) {
             if (isTruthy(left)) {
                 return left;
-            } else{
-                if (!isTruthy(left)) {
-                    return left;
-                }
+            }
+        } else{
+            if (!isTruthy(left)) {
+                return left;
             }
         }
         return evaluate(expr.right);
@@ -71,27 +81,29 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance)obj).set(expr.name, value);
+        expr.cache.set((LoxInstance)obj, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr){
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        LoxInstance object = (LoxInstance)environment.getAt(expr.depth, expr.thisSlot);
+        return superMethod(expr).bind(object);
+    }
 
-        LoxFunction method = superclass.findMethod(expr.method.lexemme);
+    private LoxFunction superMethod(Expr.Super expr){
+        LoxClass superclass = (LoxClass)environment.getAt(expr.depth, expr.slot);
+        LoxFunction method = expr.cache.findMethod(superclass, expr.method.symbol);
 
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property '"+expr.method.lexemme+"'.");
         }
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr){
-        return lookupVariable(expr.keyword, expr);
+        return environment.getAt(expr.depth, expr.slot);
     }
 
     // Evaluating parenthesis
@@ -100,6 +112,22 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
         return evaluate(expr.expression);
     }
 
+    // A call the Optimizer replaced by the function's body
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr){
+        return stillInlined(globals, expr) ? evaluate(expr.body) : evaluate(expr.call);
+    }
+
+    // The body only stands for the call while the global is still the
+    // function it was copied from (a REPL line might have redefined it)
+    static boolean stillInlined(Environment globals, Expr.Inline expr){
+        if (expr.global == null) {
+            expr.global = globals.global(expr.function.symbol);
+        }
+        Object callee = expr.global.value;
+        return callee instanceof LoxFunction && ((LoxFunction)callee).declaration.name == expr.function;
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
@@ -108,10 +136,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
         stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth){
-        locals.put(expr,depth);
-    }
-
 
     void executeBlock(List<Stmt> statements, Environment environment){
         Environment previous = this.environment;
@@ -119,8 +143,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
             this.environment = environment;
             for (Stmt stmt : statements) {
                 execute(stmt);
+                if (returning) {
+                    break;
+                }
             }
-            
+
         } finally {
             this.environment = previous;
         }
@@ -128,7 +155,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt){
-        executeBlock(stmt.statements, new Environment(environment));
+        if (stmt.frames == null) {
+            executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
+            return null;
+        }
+        Environment frame = stmt.frames.take(environment);
+        executeBlock(stmt.statements, frame);
+        stmt.frames.give(frame);
         return null;
     }
 
@@ -146,39 +179,55 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
             }
         }
 
-        environment.define(stmt.name.lexemme, null);
+        // Methods that use the class's own name capture it before it has a value
+        define(stmt.slot, stmt.name, stmt.captured ? new Cell(null) : null);
 
+        Environment enclosing = environment;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            // Only methods use super, always through a capture
+            environment = new Environment(environment, 1);
+            environment.define(0, new Cell(superclass));
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexemme.equals("init"));
-            methods.put(method.name.lexemme, function);
+            LoxFunction function = new LoxFunction(method, LoxFunction.capture(method, environment),
+                method.name.symbol == Symbol.INIT);
+            methods.put(method.name.symbol, function);
         }
-        
+        environment = enclosing;
+
         LoxClass klass = new LoxClass(stmt.name.lexemme,(LoxClass)superclass, methods);
-        
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
 
-        environment.assign(stmt.name, klass);
+        if (stmt.slot < 0) {
+            globals.assign(stmt.name, klass);
+        } else {
+            environment.assignAt(0, stmt.slot, klass);
+        }
         return null;
     }
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt){
-        evaluate(stmt.expression);
+        if (stmt.expression instanceof Expr.Assign) {
+            // Nobody looks at the result, so "i = i + 1;" never has to box
+            evaluateNumber(stmt.expression);
+        } else {
+            evaluate(stmt.expression);
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt){
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexemme, function);
+        if (!stmt.captured) {
+            define(stmt.slot, stmt.name, new LoxFunction(stmt, LoxFunction.capture(stmt, environment), false));
+            return null;
+        }
+        // It uses itself (or a closure made later does): the Cell has to exist first
+        Cell cell = new Cell(null);
+        environment.define(stmt.slot, cell);
+        cell.value = new LoxFunction(stmt, LoxFunction.capture(stmt, environment), false);
         return null;
     }
 
@@ -205,40 +254,115 @@ public Void visitIfStmt(Stmt.If stmt) {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt){
         Object value = null;
-        if (stmt.value != null) {
+        if (stmt.tailCall) {
+            value = tailCall((Expr.Call)stmt.value);
+        } else if (stmt.value != null) {
             value= evaluate(stmt.value);
         }
-        throw new Return(value);
+        returnValue = value;
+        returning = true;
+        return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt){
+        if (stmt.captured) {
+            Object value = stmt.initializer != null ? evaluate(stmt.initializer) : null;
+            environment.define(stmt.slot, new Cell(value));
+            return null;
+        }
+        if (stmt.slot >= 0 && stmt.initializer != null) {
+            double number = evaluateNumber(stmt.initializer);
+            if (isNumber) {
+                environment.defineNumber(stmt.slot, number);
+            } else {
+                environment.define(stmt.slot, notNumber);
+            }
+            return null;
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexemme, value);
+        define(stmt.slot, stmt.name, value);
         return null;
     }
 
+    // Declarations get a slot from the Resolver, -1 means its a global
+    private void define(int slot, token name, Object value){
+        if (slot < 0) {
+            globals.define(name.symbol, value);
+        } else {
+            environment.define(slot, value);
+        }
+    }
+
     // Interpret while loop
     @Override
     public Void visitWhileStmt(Stmt.While stmt){
+        if (stmt.counted && ((Expr.Variable)((Expr.Binary)stmt.condition).left).depth >= 0) {
+            countedLoop(stmt);
+            return null;
+        }
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            if (returning) {
+                break;
+            }
         }
         return null;
     }
 
+    // A loop the Optimizer marked as counted: "while (i < n) { ...; i = i + step; }"
+    // where the block declares nothing. The block gets one Environment for the
+    // whole loop instead of one per iteration, the condition is compared
+    // unboxed and the increment is done in place. If i stops being a number
+    // the increment runs as the normal statement and reports the error.
+    private void countedLoop(Stmt.While stmt){
+        Expr.Binary condition = (Expr.Binary)stmt.condition;
+        Expr.Variable counter = (Expr.Variable)condition.left;
+        List<Stmt> statements = ((Stmt.Block)stmt.body).statements;
+        int last = statements.size() - 1;
+        Stmt.Expression increment = (Stmt.Expression)statements.get(last);
+        Expr.Binary next = (Expr.Binary)((Expr.Assign)increment.expression).value;
+        double step = (double)((Expr.Literal)next.right).value;
+        if (next.operator.type == tokenType.MINUS) {
+            step = -step;
+        }
+
+        Environment frame = environment.ancestor(counter.depth);
+        Environment previous = environment;
+        Environment body = new Environment(environment, 0);
+        try {
+            while (compare(condition)) {
+                environment = body;
+                for (int i = 0; i < last; i++) {
+                    execute(statements.get(i));
+                    if (returning) {
+                        return;
+                    }
+                }
+                if (frame.isNumber(counter.slot)) {
+                    frame.defineNumber(counter.slot, frame.numberAt(counter.slot) + step);
+                } else {
+                    execute(increment);
+                }
+                environment = previous;
+            }
+        } finally {
+            environment = previous;
+        }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr){
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance,expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else{
-            globals.assign(expr.name, value);
+            globals.assign(global(expr), expr.name, value);
         }
         
         return value;
@@ -247,15 +371,11 @@ public Void visitIfStmt(Stmt.If stmt) {
     // Evaluating unary
     @Override
     public Object visitUnaryExpr(Expr.Unary expr){
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case BANG:
-                return !isTruthy(right);
+                return !isTruthy(evaluate(expr.right));
             case MINUS:
-                // Trying to get the runtime error:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return negate(expr);
 
 
         }
@@ -267,26 +387,35 @@ public Void visitIfStmt(Stmt.If stmt) {
     public Object visitVariableExpr(Expr.Variable expr){
         // Object value = environment.get(expr.name); // Debug
         // System.out.println("Variable " + expr.name.lexemme + " = " + value); // Debug
-        return lookupVariable(expr.name, expr);
+        if (expr.depth < 0) {
+            return globals.get(global(expr), expr.name);
+        }
+        return environment.getAt(expr.depth, expr.slot);
     }
 
-    private Object lookupVariable(token name, Expr expr){
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexemme);
-        } else{
-            return globals.get(name);
+    // Only the first use of a global looks it up by name, the node keeps the Cell
+    private Cell global(Expr.Variable expr){
+        if (expr.global == null) {
+            expr.global = globals.global(expr.name.symbol);
         }
+        return expr.global;
     }
 
-    private void checkNumberOperand(token operator, Object operand){
+    private Cell global(Expr.Assign expr){
+        if (expr.global == null) {
+            expr.global = globals.global(expr.name.symbol);
+        }
+        return expr.global;
+    }
+
+    static void checkNumberOperand(token operator, Object operand){
         if (operand instanceof Double) {
             return;
         }
         throw new RuntimeError(operator, "Operand must be a number!");
     }
 
-    private void checkNumberOperands(token operator, Object left, Object right){
+    static void checkNumberOperands(token operator, Object left, Object right){
         if (left instanceof Double && right instanceof Double) {
             return;
         }
@@ -296,7 +425,8 @@ public Void visitIfStmt(Stmt.If stmt) {
 
     // True or false?
     // Using ruby's rule where if not false or nil everything is true
-    private boolean isTruthy(Object obj){
+    // (static so the VM follows the exact same rules)
+    static boolean isTruthy(Object obj){
         if (obj == null) {  
             return false;
         }
@@ -309,20 +439,20 @@ public Void visitIfStmt(Stmt.If stmt) {
         return true;
     }
 
-    private boolean isEqual(Object obj1, Object obj2) {
+    static boolean isEqual(Object obj1, Object obj2) {
         if (obj1 == null && obj2 == null) {
             return true;
         }
         if (obj1 == null || obj2 == null) {
             return false;
         }
-        if (obj1 instanceof String && obj2 instanceof String) {
-            return ((String) obj1).equals((String) obj2);
+        if (Rope.isString(obj1) && Rope.isString(obj2)) {
+            return obj1.toString().equals(obj2.toString());
         }
         return obj1.equals(obj2);
 }
 
-    private String stringify(Object object){
+    static String stringify(Object object){
         if (object == null) {
             return "nil";
         }
@@ -339,69 +469,335 @@ public Void visitIfStmt(Stmt.If stmt) {
     // binary
 @Override
 public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
-    // System.out.println("Binary op: " + expr.operator.type + ", left = " + left + ", right = " + right); // DEbug
+    if (hasCall(expr)) {
+        return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+    }
     switch (expr.operator.type) {
+        case MINUS:
+        case PLUS:
+        case SLASH:
+        case STAR:
+            double value = arithmetic(expr);
+            return isNumber ? (Object)value : notNumber;
         case GREATER:
-            checkNumberOperands(expr.operator, left, right);
-            boolean greater = (Double) left > (Double) right;
-            //System.out.println("GREATER result: " + greater); // Debug
-            return greater;
         case GREATER_EQUAL:
-            checkNumberOperands(expr.operator, left, right);
-            boolean greaterEqual = (Double) left >= (Double) right;
-            //System.out.println("GREATER_EQUAL result: " + greaterEqual); // Debug
-            return greaterEqual;
         case LESS:
-            checkNumberOperands(expr.operator, left, right);
-            boolean less = (Double) left < (Double) right;
-            // System.out.println("LESS result: " + less); // Debug
-            return less;
         case LESS_EQUAL:
-            checkNumberOperands(expr.operator, left, right);
-            boolean lessEqual = (Double) left <= (Double) right;
-            //System.out.println("LESS_EQUAL result: " + lessEqual); // Debug
-            return lessEqual;
-        case BANG_EQUAL:
-            boolean notEqual = !isEqual(left, right);
-            // System.out.println("BANG_EQUAL result: " + notEqual); // Debug
-            return notEqual;
-        case EQUAL_EQUAL:
-            boolean equal = isEqual(left, right);
-            // System.out.println("EQUAL_EQUAL result: " + equal); // Debug
-            return equal;
-        case MINUS:
-            checkNumberOperands(expr.operator, left, right);
-            return (double) left - (double) right;
-        case PLUS:
-            if (left instanceof Double && right instanceof Double) {
-                return (double)left + (double)right;
+            return compare(expr);
+    }
+    return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+}
+
+    // The plain rules for when the operands are already boxed. The one copy:
+    // the Optimizer folds constants with it and --compile/--specialize run it
+    static Object binary(token operator, Object left, Object right) {
+        switch (operator.type) {
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (Double) left > (Double) right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (Double) left >= (Double) right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (Double) left < (Double) right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (Double) left <= (Double) right;
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double) left - (double) right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                if (Rope.isString(left) || Rope.isString(right)) {
+                    return Rope.concat(left, right);
+                }
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings!");
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return (double) left / (double) right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (double) left * (double) right;
+        }
+        return null;
+    }
+
+    // Unboxed numbers
+    //
+    // evaluateNumber() is evaluate() for the places that want a double.
+    // Arithmetic, comparisons and local variables hand raw doubles to each
+    // other so a loop like "while (i < n) i = i + 1;" allocates nothing.
+    // If the value turns out not to be a number, isNumber is false and the
+    // value is left in notNumber so the caller can fall back to the normal
+    // rules (+ still has to work on strings).
+    private boolean isNumber;
+    private Object notNumber;
+
+    // A call hands back a boxed value anyway. The unboxed path would only add
+    // arithmetic() and evaluateNumber() frames under every recursive
+    // "1 + f(n - 1)", and the Java stack is what limits how deep Lox can recurse.
+    private static boolean hasCall(Expr.Binary expr){
+        return expr.left instanceof Expr.Call || expr.right instanceof Expr.Call;
+    }
+
+    private double evaluateNumber(Expr expr){
+        // Most common first: locals and literals
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.depth >= 0) {
+                Environment frame = environment.ancestor(variable.depth);
+                if (frame.isNumber(variable.slot)) {
+                    isNumber = true;
+                    return frame.numberAt(variable.slot);
+                }
+                return asNumber(frame.getAt(0, variable.slot));
             }
-            if (left instanceof String || right instanceof String) {
-                String leftStr = stringify(left);
-                String rightStr = stringify(right);
-                return leftStr + rightStr;
+        } else if (expr instanceof Expr.Literal) {
+            return asNumber(((Expr.Literal)expr).value);
+        } else if (expr instanceof Expr.Binary && !hasCall((Expr.Binary)expr)) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case PLUS:
+                case SLASH:
+                case STAR:
+                    return arithmetic(binary);
+                default:
+                    break;
             }
-            throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings!");
-        case SLASH:
-            checkNumberOperands(expr.operator, left, right);
-            return (double) left / (double) right;
-        case STAR:
-            checkNumberOperands(expr.operator, left, right);
-            return (double) left * (double) right;
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Assign) {
+            return assignNumber((Expr.Assign)expr);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == tokenType.MINUS) {
+                return negate(unary);
+            }
+        } else if (expr instanceof Expr.Inline) {
+            Expr.Inline inline = (Expr.Inline)expr;
+            if (stillInlined(globals, inline)) {
+                return evaluateNumber(inline.body);
+            }
+        }
+        return asNumber(evaluate(expr));
+    }
+
+    private double asNumber(Object value){
+        if (value instanceof Double) {
+            isNumber = true;
+            return (Double)value;
+        }
+        isNumber = false;
+        notNumber = value;
+        return 0;
+    }
+
+    // - + / * on doubles, anything else goes through binary()
+    private double arithmetic(Expr.Binary expr){
+        double left = evaluateNumber(expr.left);
+        if (!isNumber) {
+            Object boxedLeft = notNumber;
+            return asNumber(binary(expr.operator, boxedLeft, evaluate(expr.right)));
+        }
+        double right = evaluateNumber(expr.right);
+        if (!isNumber) {
+            return asNumber(binary(expr.operator, left, notNumber));
+        }
+        switch (expr.operator.type) {
+            case MINUS:
+                return left - right;
+            case PLUS:
+                return left + right;
+            case SLASH:
+                return left / right;
+            default:
+                return left * right;
+        }
     }
-    return null;
-}
 
+    private boolean compare(Expr.Binary expr){
+        double left = evaluateNumber(expr.left);
+        boolean leftIsNumber = isNumber;
+        double right = evaluateNumber(expr.right);
+        if (!leftIsNumber || !isNumber) {
+            throw new RuntimeError(expr.operator, "Operands must be numbers!");
+        }
+        switch (expr.operator.type) {
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            default:
+                return left <= right;
+        }
+    }
+
+    private double negate(Expr.Unary expr){
+        double right = evaluateNumber(expr.right);
+        if (!isNumber) {
+            checkNumberOperand(expr.operator, notNumber);
+        }
+        return -right;
+    }
+
+    // Same as visitAssignExpr but a number goes into the frame unboxed
+    private double assignNumber(Expr.Assign expr){
+        double value = evaluateNumber(expr.value);
+        boolean valueIsNumber = isNumber;
+        Object boxed = notNumber;
+        if (expr.depth < 0) {
+            globals.assign(global(expr), expr.name, valueIsNumber ? (Object)value : boxed);
+        } else if (valueIsNumber) {
+            environment.ancestor(expr.depth).defineNumber(expr.slot, value);
+        } else {
+            environment.assignAt(expr.depth, expr.slot, boxed);
+        }
+        isNumber = valueIsNumber;
+        return value;
+    }
+
+    // Every recursive Lox call has this frame on the Java stack, so it stays
+    // small: arguments, methods and everything but a Lox function are done in
+    // other methods, which are off the stack by the time the callee runs.
     @Override
     public Object visitCallExpr(Expr.Call expr){
-        Object callee = evaluate(expr.callee);
+        Object callee = callee(expr.callee);
+        LoxInstance receiver = methodReceiver;
+        methodReceiver = null;
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            LoxInstance self = receiver != null ? receiver : function.receiver;
+            // Plain functions go the long way under --jit
+            if (function.arity() == expr.arguments.size() && (self != null || jit == null)) {
+                return function.run(this, frame(function, self, expr.arguments), self);
+            }
+        }
+        return callOther(expr, callee);
+    }
+
+    // "return f(...)": a Lox function isnt called from here, it gets set up
+    // in tailCall for LoxFunction.trampoline() to jump into
+    private Object tailCall(Expr.Call expr){
+        Object callee = callee(expr.callee);
+        LoxInstance receiver = methodReceiver;
+        methodReceiver = null;
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            LoxInstance self = receiver != null ? receiver : function.receiver;
+            if (function.arity() == expr.arguments.size()) {
+                tailFrame = frame(function, self, expr.arguments);
+                tailCall = function;
+                tailReceiver = self;
+                return null;
+            }
+        }
+        return callOther(expr, callee);
+    }
+
+    // Lox functions get their arguments evaluated right into the new frame,
+    // numbers stay unboxed
+    private Environment frame(LoxFunction function, LoxInstance self, List<Expr> arguments){
+        Environment frame = function.frame(self);
+        int slot = LoxFunction.firstParameter(self);
+        for (Expr argument : arguments) {
+            double number = evaluateNumber(argument);
+            if (isNumber) {
+                frame.defineNumber(slot++, number);
+            } else {
+                frame.define(slot++, notNumber);
+            }
+        }
+        return frame;
+    }
+
+    // Classes and natives (and under --jit plain functions), through the
+    // fixed arity entry points when we can
+    private Object callOther(Expr.Call expr, Object callee){
+        List<Expr> args = expr.arguments;
+        switch (args.size()) {
+            case 0:
+                return callable(expr, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(args.get(0));
+                return callable(expr, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(args.get(0));
+                Object b = evaluate(args.get(1));
+                return callable(expr, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(args.get(0));
+                Object b = evaluate(args.get(1));
+                Object c = evaluate(args.get(2));
+                return callable(expr, callee, 3).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(args.get(0));
+                Object b = evaluate(args.get(1));
+                Object c = evaluate(args.get(2));
+                Object d = evaluate(args.get(3));
+                return callable(expr, callee, 4).call4(this, a, b, c, d);
+            }
+        }
 
         List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
+        for (Expr argument : args) {
             arguments.add(evaluate(argument));
         }
+        return callable(expr, callee, arguments.size()).call(this, arguments);
+    }
+
+    // What is being called. For obj.method() and super.method() the receiver
+    // is left in methodReceiver, see method()
+    private Object callee(Expr callee){
+        if (callee instanceof Expr.Get || callee instanceof Expr.Super) {
+            return method(callee);
+        }
+        return evaluate(callee);
+    }
+
+    // obj.method() and super.method() pass the receiver straight to the method,
+    // no need for a bound LoxFunction that would be thrown away right after.
+    // Returns the callee and leaves the receiver in methodReceiver (null if
+    // its a field holding something callable). Kept out of visitCallExpr so a
+    // plain recursive call doesnt carry these locals in its Java frame.
+    private LoxInstance methodReceiver = null;
+
+    private Object method(Expr callee){
+        if (callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)callee;
+            // Only once nothing can throw, a stale receiver would go to the next call
+            LoxFunction method = superMethod(superExpr);
+            methodReceiver = (LoxInstance)environment.getAt(superExpr.depth, superExpr.thisSlot);
+            return method;
+        }
+        Expr.Get get = (Expr.Get)callee;
+        Object obj = evaluate(get.object);
+        if (!(obj instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+        LoxInstance instance = (LoxInstance)obj;
+        LoxFunction method = get.cache.method(instance, get.name);
+        if (method != null) {
+            methodReceiver = instance;
+            return method;
+        }
+        return get.cache.get(instance, get.name);
+    }
+
+    // The checks every call makes once its arguments are evaluated
+    private LoxCallable callable(Expr.Call expr, Object callee, int argumentCount){
         // Check if trying to call using strings
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call funcions and classes.");
@@ -410,17 +806,16 @@ public Object visitBinaryExpr(Expr.Binary expr) {
         LoxCallable function = (LoxCallable)callee;
 
         // need to check if the number of parameters is equal to the nuber of arguments declared
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected "+function.arity()+" arguments but got "+arguments.size()+".");
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected "+function.arity()+" arguments but got "+argumentCount+".");
         }
-
-        return function.call(this, arguments);
+        return function;
     }
     @Override
     public Object visitGetExpr(Expr.Get expr){
         Object obj = evaluate(expr.object);
         if (obj instanceof LoxInstance) {
-            return ((LoxInstance)obj).get(expr.name);
+            return expr.cache.get((LoxInstance)obj, expr.name);
         }
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
@@ -0,0 +1,452 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import static lox.ClassWriter.*;
+
+// Compiles numeric Lox functions into real JVM classes so HotSpot can optimize them.
+// Only a small, pure subset is supported: numbers, the function's own parameters
+// and locals, arithmetic, comparisons, if/while/return, calls to itself and
+// calls the Optimizer inlined.
+// Because such a function has no side effects, any call can be thrown away
+// half way and run again by the tree-walker, which is how everything
+// the compiled code cant express (nil, strings, errors...) is handled.
+class JvmCompiler {
+    // Returned when the tree-walker has to run the call instead
+    static final Object NOT_COMPILED = new Object();
+
+    private static final String LIST = "java/util/List";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String DEOPT = "lox/JvmCompiler$Deopt";
+
+    private static class Compiled {
+        final LoxCallable code;
+        // The global Cell of a function that calls itself, null if it doesnt
+        final Cell self;
+        final List<Expr.Inline> inlined;
+
+        Compiled(LoxCallable code, Cell self, List<Expr.Inline> inlined){
+            this.code = code;
+            this.self = self;
+            this.inlined = inlined;
+        }
+    }
+
+    private static final Compiled UNSUPPORTED = new Compiled(null, null, null);
+
+    // The compiled code throws this to give up on a call (deoptimize). Its own
+    // class so a real error from inside never gets mistaken for one. Public,
+    // the generated classes are in another package.
+    public static final class Deopt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public Deopt(){
+            super(null, null, false, false);
+        }
+    }
+
+    // Thrown while compiling when the function uses something outside the subset
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(){
+            super(null, null, false, false);
+        }
+    }
+
+    // Generated classes live in their own loader
+    private static class Loader extends ClassLoader {
+        Loader(){
+            super(JvmCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes){
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // Keyed by declaration so every closure of the same function shares the code
+    private final Map<Stmt.Function, Compiled> compiled = new WeakHashMap<>();
+    private final Loader loader = new Loader();
+    private int classCount = 0;
+
+    Object call(LoxFunction function, Interpreter interpreter, List<Object> arguments){
+        Compiled code = compiled.get(function.declaration);
+        if (code == null) {
+            code = compile(function.declaration, interpreter.globals);
+            compiled.put(function.declaration, code);
+        }
+        if (code == UNSUPPORTED) {
+            return NOT_COMPILED;
+        }
+
+        for (Object argument : arguments) {
+            if (!(argument instanceof Double)) {
+                return NOT_COMPILED;
+            }
+        }
+        // Calls to itself were bound at compile time, only valid while the global still is this function.
+        // Nothing inside the compiled code can change it.
+        if (code.self != null && code.self.value != function) {
+            return NOT_COMPILED;
+        }
+        // Same for inlined calls, the compiled code has no guard of its own
+        for (Expr.Inline inline : code.inlined) {
+            if (!Interpreter.stillInlined(interpreter.globals, inline)) {
+                return NOT_COMPILED;
+            }
+        }
+
+        try {
+            return code.code.call(interpreter, arguments);
+        } catch (Deopt deopt) {
+            return NOT_COMPILED;
+        }
+    }
+
+    private Compiled compile(Stmt.Function function, Environment globals){
+        // A double takes two JVM local slots. Captured variables are Cells
+        // in the frame, which the compiled code has no way to reach.
+        if (function.params.size() > 120 || function.captures.length > 0) {
+            return UNSUPPORTED;
+        }
+        try {
+            String name = "lox/jit/" + function.name.lexemme + "$" + (classCount++);
+            FunctionCompiler body = new FunctionCompiler(function, name);
+            byte[] bytes = body.emitClass();
+            Class<?> generated = loader.define(name.replace('/', '.'), bytes);
+            LoxCallable code = (LoxCallable)generated.getDeclaredConstructor().newInstance();
+            Cell self = body.recursive ? globals.global(function.name.symbol) : null;
+            return new Compiled(code, self, body.inlined);
+        } catch (Unsupported | IllegalStateException | LinkageError | ReflectiveOperationException error) {
+            return UNSUPPORTED;
+        }
+    }
+
+    // Emits the class for one function:
+    //   public final class lox.jit.name$N implements LoxCallable {
+    //       public int arity()
+    //       public Object call(Interpreter, List)   unboxes the arguments and calls invoke
+    //       public static double invoke(double...)  the actual body
+    //   }
+    private static class FunctionCompiler {
+        private final Stmt.Function function;
+        private final String className;
+        private final String invokeDescriptor;
+        private ClassWriter.MethodWriter code;
+        private ClassWriter writer;
+        // Base JVM local of each scope inside the function, innermost last
+        private final List<Integer> scopes = new ArrayList<>();
+        private int nextLocal = 0;
+        boolean recursive = false;
+        final List<Expr.Inline> inlined = new ArrayList<>();
+        // Start of the body, self tail calls jump back here
+        private Label bodyStart;
+
+        FunctionCompiler(Stmt.Function function, String className){
+            this.function = function;
+            this.className = className;
+            StringBuilder descriptor = new StringBuilder("(");
+            for (int i = 0; i < function.params.size(); i++) {
+                descriptor.append('D');
+            }
+            invokeDescriptor = descriptor.append(")D").toString();
+        }
+
+        byte[] emitClass(){
+            writer = new ClassWriter(className, "java/lang/Object", "lox/LoxCallable");
+
+            ClassWriter.MethodWriter init = writer.method(ACC_PUBLIC, "<init>", "()V");
+            init.locals(1);
+            init.op(ALOAD, 0, 1);
+            init.opShort(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"), -1);
+            init.op(RETURN, 0);
+
+            int arity = function.params.size();
+            ClassWriter.MethodWriter arityMethod = writer.method(ACC_PUBLIC, "arity", "()I");
+            arityMethod.locals(1);
+            arityMethod.op(BIPUSH, arity, 1);
+            arityMethod.op(IRETURN, -1);
+
+            emitCall(arity);
+            emitInvoke();
+            return writer.toByteArray();
+        }
+
+        private void emitCall(int arity){
+            ClassWriter.MethodWriter call = writer.method(ACC_PUBLIC, "call",
+                "(Llox/Interpreter;Ljava/util/List;)Ljava/lang/Object;");
+            call.locals(3);
+            int get = writer.interfaceMethodRef(LIST, "get", "(I)Ljava/lang/Object;");
+            int doubleValue = writer.methodRef(DOUBLE, "doubleValue", "()D");
+            for (int i = 0; i < arity; i++) {
+                call.op(ALOAD, 2, 1);
+                call.op(BIPUSH, i, 1);
+                call.invokeInterface(get, 1, -1);
+                call.opShort(CHECKCAST, writer.classRef(DOUBLE), 0);
+                call.opShort(INVOKEVIRTUAL, doubleValue, 1);
+            }
+            call.opShort(INVOKESTATIC, writer.methodRef(className, "invoke", invokeDescriptor), 2 - 2 * arity);
+            call.opShort(INVOKESTATIC, writer.methodRef(DOUBLE, "valueOf", "(D)Ljava/lang/Double;"), -1);
+            call.op(ARETURN, -1);
+        }
+
+        private void emitInvoke(){
+            code = writer.method(ACC_PUBLIC | ACC_STATIC, "invoke", invokeDescriptor);
+            // Parameters are slots 0..n-1 of the function's scope
+            scopes.add(0);
+            nextLocal = 2 * function.frameSize;
+            bodyStart = code.newLabel();
+            code.mark(bodyStart);
+            for (Stmt stmt : function.body) {
+                statement(stmt);
+            }
+            // Falling off the end returns nil, which a double cant be
+            deopt();
+            code.locals(nextLocal);
+        }
+
+        // Statements
+
+        private void statement(Stmt stmt){
+            if (stmt instanceof Stmt.Block) {
+                Stmt.Block block = (Stmt.Block)stmt;
+                scopes.add(nextLocal);
+                nextLocal += 2 * block.frameSize;
+                for (Stmt inner : block.statements) {
+                    statement(inner);
+                }
+                scopes.remove(scopes.size() - 1);
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)stmt;
+                if (var.initializer == null) {
+                    throw new Unsupported();
+                }
+                number(var.initializer);
+                code.op(DSTORE, local(0, var.slot), -2);
+            } else if (stmt instanceof Stmt.Expression) {
+                Expr expression = ((Stmt.Expression)stmt).expression;
+                if (expression instanceof Expr.Assign) {
+                    Expr.Assign assign = (Expr.Assign)expression;
+                    number(assign.value);
+                    code.op(DSTORE, local(assign.depth, assign.slot), -2);
+                } else {
+                    number(expression);
+                    code.op(POP2, -2);
+                }
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                Label elseLabel = code.newLabel();
+                branch(ifStmt.condition, elseLabel, false);
+                statement(ifStmt.thenBranch);
+                if (ifStmt.elseBranch == null) {
+                    code.mark(elseLabel);
+                } else {
+                    Label end = code.newLabel();
+                    code.jump(GOTO, end, 0);
+                    code.mark(elseLabel);
+                    statement(ifStmt.elseBranch);
+                    code.mark(end);
+                }
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While)stmt;
+                Label start = code.newLabel();
+                Label end = code.newLabel();
+                code.mark(start);
+                branch(loop.condition, end, false);
+                statement(loop.body);
+                code.jump(GOTO, start, 0);
+                code.mark(end);
+            } else if (stmt instanceof Stmt.Return) {
+                Stmt.Return ret = (Stmt.Return)stmt;
+                if (ret.value == null) {
+                    deopt();
+                } else if (ret.tailCall) {
+                    // Overwrite the parameters and start over, a loop instead of a JVM call
+                    selfCallArguments((Expr.Call)ret.value);
+                    for (int i = function.params.size() - 1; i >= 0; i--) {
+                        code.op(DSTORE, local(scopes.size() - 1, i), -2);
+                    }
+                    code.jump(GOTO, bodyStart, 0);
+                } else {
+                    number(ret.value);
+                    code.op(DRETURN, -2);
+                }
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        // Expressions that produce a double on the stack
+
+        private void number(Expr expr){
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal)expr).value;
+                if (!(value instanceof Double)) {
+                    throw new Unsupported();
+                }
+                double number = (Double)value;
+                if (Double.doubleToRawLongBits(number) == 0L) {
+                    code.op(DCONST_0, 2);
+                } else if (number == 1.0) {
+                    code.op(DCONST_1, 2);
+                } else {
+                    code.opShort(LDC2_W, writer.doubleConstant(number), 2);
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                number(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                code.op(DLOAD, local(variable.depth, variable.slot), 2);
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                number(assign.value);
+                code.op(DUP2, 2);
+                code.op(DSTORE, local(assign.depth, assign.slot), -2);
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                if (unary.operator.type != tokenType.MINUS) {
+                    throw new Unsupported();
+                }
+                number(unary.right);
+                code.op(DNEG, 0);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                int opcode;
+                switch (binary.operator.type) {
+                    case PLUS: opcode = DADD; break;
+                    case MINUS: opcode = DSUB; break;
+                    case STAR: opcode = DMUL; break;
+                    case SLASH: opcode = DDIV; break;
+                    default:
+                        throw new Unsupported();
+                }
+                number(binary.left);
+                number(binary.right);
+                code.op(opcode, -2);
+            } else if (expr instanceof Expr.Call) {
+                selfCall((Expr.Call)expr);
+            } else if (expr instanceof Expr.Inline) {
+                Expr.Inline inline = (Expr.Inline)expr;
+                inlined.add(inline);
+                number(inline.body);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private void selfCall(Expr.Call call){
+            selfCallArguments(call);
+            int arguments = 2 * call.arguments.size();
+            code.opShort(INVOKESTATIC, writer.methodRef(className, "invoke", invokeDescriptor), 2 - arguments);
+        }
+
+        // Checks its a call to this very function and pushes the arguments
+        private void selfCallArguments(Expr.Call call){
+            if (!(call.callee instanceof Expr.Variable)) {
+                throw new Unsupported();
+            }
+            Expr.Variable callee = (Expr.Variable)call.callee;
+            boolean isSelf = callee.depth < 0 && function.slot < 0
+                && callee.name.symbol == function.name.symbol;
+            if (!isSelf || call.arguments.size() != function.params.size()) {
+                throw new Unsupported();
+            }
+            for (Expr argument : call.arguments) {
+                number(argument);
+            }
+            recursive = true;
+        }
+
+        // Conditions, compiled straight into jumps
+
+        private void branch(Expr expr, Label target, boolean jumpIfTrue){
+            if (expr instanceof Expr.Grouping) {
+                branch(((Expr.Grouping)expr).expression, target, jumpIfTrue);
+                return;
+            }
+            if (expr instanceof Expr.Literal) {
+                if (Interpreter.isTruthy(((Expr.Literal)expr).value) == jumpIfTrue) {
+                    code.jump(GOTO, target, 0);
+                }
+                return;
+            }
+            if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == tokenType.BANG) {
+                branch(((Expr.Unary)expr).right, target, !jumpIfTrue);
+                return;
+            }
+            if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical)expr;
+                boolean isOr = logical.operator.type == tokenType.OR;
+                if (isOr == jumpIfTrue) {
+                    // or jumping when true, and jumping when false: either side decides
+                    branch(logical.left, target, jumpIfTrue);
+                    branch(logical.right, target, jumpIfTrue);
+                } else {
+                    Label skip = code.newLabel();
+                    branch(logical.left, skip, !jumpIfTrue);
+                    branch(logical.right, target, jumpIfTrue);
+                    code.mark(skip);
+                }
+                return;
+            }
+            if (expr instanceof Expr.Binary && comparison((Expr.Binary)expr, target, jumpIfTrue)) {
+                return;
+            }
+
+            // Any other number: this repo treats 0 as false
+            number(expr);
+            code.op(DCONST_0, 2);
+            code.op(DCMPL, -3);
+            code.jump(jumpIfTrue ? IFNE : IFEQ, target, -1);
+        }
+
+        private boolean comparison(Expr.Binary binary, Label target, boolean jumpIfTrue){
+            int compare;
+            int whenTrue;
+            int whenFalse;
+            // dcmpg/dcmpl are picked so NaN always compares false, like in Java
+            switch (binary.operator.type) {
+                case LESS:          compare = DCMPG; whenTrue = IFLT; whenFalse = IFGE; break;
+                case LESS_EQUAL:    compare = DCMPG; whenTrue = IFLE; whenFalse = IFGT; break;
+                case GREATER:       compare = DCMPL; whenTrue = IFGT; whenFalse = IFLE; break;
+                case GREATER_EQUAL: compare = DCMPL; whenTrue = IFGE; whenFalse = IFLT; break;
+                // Lox equality is Double.equals, which Double.compare matches (NaN == NaN, 0 != -0)
+                case EQUAL_EQUAL:   compare = -1; whenTrue = IFEQ; whenFalse = IFNE; break;
+                case BANG_EQUAL:    compare = -1; whenTrue = IFNE; whenFalse = IFEQ; break;
+                default:
+                    return false;
+            }
+            number(binary.left);
+            number(binary.right);
+            if (compare == -1) {
+                code.opShort(INVOKESTATIC, writer.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+            } else {
+                code.op(compare, -3);
+            }
+            code.jump(jumpIfTrue ? whenTrue : whenFalse, target, -1);
+            return true;
+        }
+
+        // Maps a resolved (depth, slot) to a JVM local, only inside this function
+        private int local(int depth, int slot){
+            if (depth < 0 || depth >= scopes.size()) {
+                throw new Unsupported();
+            }
+            int local = scopes.get(scopes.size() - 1 - depth) + 2 * slot;
+            if (local > 0xfe) {
+                throw new Unsupported();
+            }
+            return local;
+        }
+
+        private void deopt(){
+            code.opShort(NEW, writer.classRef(DEOPT), 1);
+            code.op(DUP, 1);
+            code.opShort(INVOKESPECIAL, writer.methodRef(DEOPT, "<init>", "()V"), -2);
+            code.op(ATHROW, -1);
+        }
+    }
+}
@@ -1,8 +1,34 @@
 package lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-interface LoxCallable {
+// Public so classes generated by JvmCompiler (in their own class loader) can implement it
+public interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // Fixed arity entry points so a call site doesnt have to build a List.
+    // These defaults just make one; LoxFunction and LoxClass put the arguments
+    // straight into the callee's frame. More than 4 arguments go through call().
+    default Object call0(Interpreter interpreter){
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a){
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b){
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
 }
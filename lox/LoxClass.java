@@ -1,27 +1,37 @@
 package lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    // Every method the class has, inherited ones included, so a lookup is one
+    // probe no matter how deep the hierarchy is. Built once, classes cant change.
+    private final Map<Symbol, LoxFunction> methods;
+    // init() (maybe inherited), null if there is none
+    private final LoxFunction initializer;
+    // Where the Shapes of this class's instances start from
+    final Shape shape = new Shape();
+    // Most fields any instance has had so far, new ones are allocated with this many
+    int fieldCount = 0;
 
-    LoxClass(String name,LoxClass superclass, Map<String, LoxFunction> methods){
+    LoxClass(String name,LoxClass superclass, Map<Symbol, LoxFunction> methods){
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
-    }
-
-    LoxFunction findMethod(String name){
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        Map<Symbol, LoxFunction> flattened = new HashMap<>();
         if (superclass != null) {
-            return superclass.findMethod(name);
+            flattened.putAll(superclass.methods);
         }
-        return null;
+        // Our own methods override the inherited ones
+        flattened.putAll(methods);
+        this.methods = flattened;
+        this.initializer = flattened.get(Symbol.INIT);
+    }
+
+    LoxFunction findMethod(Symbol name){
+        return methods.get(name);
     }
 
     @Override
@@ -32,20 +42,81 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments){
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
     }
 
+    // Same thing without the List, the arguments go right into init's frame
+    // (after "this" in slot 0)
+
+    @Override
+    public Object call0(Interpreter interpreter){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            Environment frame = initializer.frame(instance);
+            initializer.run(interpreter, frame, instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            Environment frame = initializer.frame(instance);
+            frame.define(1, a);
+            initializer.run(interpreter, frame, instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            Environment frame = initializer.frame(instance);
+            frame.define(1, a);
+            frame.define(2, b);
+            initializer.run(interpreter, frame, instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            Environment frame = initializer.frame(instance);
+            frame.define(1, a);
+            frame.define(2, b);
+            frame.define(3, c);
+            initializer.run(interpreter, frame, instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            Environment frame = initializer.frame(instance);
+            frame.define(1, a);
+            frame.define(2, b);
+            frame.define(3, c);
+            frame.define(4, d);
+            initializer.run(interpreter, frame, instance);
+        }
+        return instance;
+    }
+
     @Override
     public int arity(){
-        LoxFunction initialize = findMethod("init");
-        if (initialize == null) {
+        if (initializer == null) {
             return 0;
         }
-        return initialize.arity();
+        return initializer.arity();
     }
 }
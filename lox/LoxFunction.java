@@ -1,47 +1,224 @@
 package lox;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 class LoxFunction implements LoxCallable{
-    private final boolean isInitializer;
-    private final Environment closure;
-    private final Stmt.Function declaration;
+    final boolean isInitializer;
+    // Only the variables the body uses from enclosing functions, see Capture
+    final Cell[] cells;
+    final Stmt.Function declaration;
+    // Set on a bound method, it becomes "this" (slot 0 of the frame)
+    final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer){
+    LoxFunction(Stmt.Function declaration, Cell[] cells, boolean isInitializer){
+        this(declaration, cells, isInitializer, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Cell[] cells, boolean isInitializer, LoxInstance receiver){
         this.declaration = declaration;
-        this.closure = closure;
+        this.cells = cells;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
+    // Only for when a method gets used as a value,
+    // calls like obj.method() go straight to invoke()
     LoxFunction bind(LoxInstance instance){
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, cells, isInitializer, instance);
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments){
-        Environment environment = new Environment(closure);
-        
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexemme, arguments.get(i));
-        }
-        
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            // Handle
-            if (isInitializer) {
-                return closure.getAt(0, "this");
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // receiver is null for plain functions
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments){
+        // Numeric functions can run as real JVM code, see JvmCompiler
+        if (interpreter.jit != null && receiver == null) {
+            Object result = interpreter.jit.call(this, interpreter, arguments);
+            if (result != JvmCompiler.NOT_COMPILED) {
+                return result;
             }
-            return returnValue.value;
         }
 
+        Environment environment = frame(receiver);
+        int first = firstParameter(receiver);
+        for (int i = 0; i < declaration.params.size(); i++) {
+            environment.define(first + i, arguments.get(i));
+        }
+        return run(interpreter, environment, receiver);
+    }
+
+    // A new frame for a call, "this" is already in it if its a method.
+    // Call sites fill in the parameters starting at firstParameter().
+    Environment frame(LoxInstance receiver){
+        // Nothing above it, globals are looked up by name anyway
+        Environment environment = declaration.frames != null
+            ? declaration.frames.take(null)
+            : new Environment(null, declaration.frameSize);
+        for (int i = 0; i < cells.length; i++) {
+            environment.define(declaration.captures[i].target, cells[i]);
+        }
+        if (receiver != null) {
+            environment.define(0, receiver);
+        }
+        return environment;
+    }
+
+    static int firstParameter(LoxInstance receiver){
+        return receiver == null ? 0 : 1;
+    }
+
+    // The Cells a new closure of declaration needs, taken from the
+    // environment its declared in
+    static Cell[] capture(Stmt.Function declaration, Environment environment){
+        Cell[] cells = new Cell[declaration.captures.length];
+        for (int i = 0; i < cells.length; i++) {
+            Capture capture = declaration.captures[i];
+            cells[i] = environment.cellAt(capture.depth, capture.slot);
+        }
+        return cells;
+    }
+
+    // Runs the body in a frame that already has its arguments. Straight into
+    // executeBlock: every Java frame between here and the body is paid again
+    // for each level of Lox recursion. (ClosureCompiler.CompiledFunction runs
+    // its own body.)
+    Object run(Interpreter interpreter, Environment frame, LoxInstance receiver){
+        box(frame);
+        interpreter.executeBlock(declaration.body, frame);
+        return finish(interpreter, frame, receiver);
+    }
+
+    // The body is done: follow a tail call if it left one, then the result
+    final Object finish(Interpreter interpreter, Environment frame, LoxInstance receiver){
+        if (interpreter.tailCall != null) {
+            return trampoline(interpreter, frame);
+        }
+        release(frame);
+        return result(interpreter, receiver);
+    }
+
+    // The trampoline for tail calls: "return f(...)" left f and its frame in
+    // interpreter.tailCall, so go around again until a body returns without
+    // one. Recursion in tail position runs in constant Java stack. Only
+    // entered when there is a tail call, a plain call doesnt pay for the loop.
+    private Object trampoline(Interpreter interpreter, Environment frame){
+        LoxFunction function = this;
+        LoxInstance receiver;
+        do {
+            function.release(frame);
+            function = interpreter.tailCall;
+            frame = interpreter.tailFrame;
+            receiver = interpreter.tailReceiver;
+            interpreter.tailCall = null;
+            interpreter.tailFrame = null;
+            interpreter.tailReceiver = null;
+            interpreter.returning = false;
+            function.box(frame);
+            function.execute(interpreter, frame);
+        } while (interpreter.tailCall != null);
+        function.release(frame);
+        return function.result(interpreter, receiver);
+    }
+
+    // What the call gives back once the body is done
+    private Object result(Interpreter interpreter, LoxInstance receiver){
+        // nil if we fell off the end
+        Object value = interpreter.returnValue;
+        interpreter.returning = false;
+        interpreter.returnValue = null;
+
         if (isInitializer) {
-            return closure.getAt(0, "this");
+            return receiver;
+        }
+
+        return value;
+    }
+
+    // Parameters (and this) that a closure in the body captures go in Cells
+    void box(Environment frame){
+        for (int slot : declaration.boxed) {
+            frame.box(slot);
+        }
+    }
+
+    // The call is over, the frame can go back to the pool if it came from one
+    private void release(Environment frame){
+        if (declaration.frames != null) {
+            declaration.frames.give(frame);
+        }
+    }
+
+    // Just the body, returns end up in interpreter.returnValue.
+    // The trampoline runs bodies through here.
+    void execute(Interpreter interpreter, Environment frame){
+        interpreter.executeBlock(declaration.body, frame);
+    }
+
+    // The fixed arity calls skip the argument List. With --jit they take the
+    // normal path since JvmCompiler wants the List anyway.
+
+    @Override
+    public Object call0(Interpreter interpreter){
+        if (interpreter.jit != null) {
+            return call(interpreter, Collections.emptyList());
+        }
+        return run(interpreter, frame(receiver), receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a){
+        if (interpreter.jit != null) {
+            return call(interpreter, Arrays.asList(a));
+        }
+        Environment frame = frame(receiver);
+        int first = firstParameter(receiver);
+        frame.define(first, a);
+        return run(interpreter, frame, receiver);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b){
+        if (interpreter.jit != null) {
+            return call(interpreter, Arrays.asList(a, b));
+        }
+        Environment frame = frame(receiver);
+        int first = firstParameter(receiver);
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        return run(interpreter, frame, receiver);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        if (interpreter.jit != null) {
+            return call(interpreter, Arrays.asList(a, b, c));
         }
+        Environment frame = frame(receiver);
+        int first = firstParameter(receiver);
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        frame.define(first + 2, c);
+        return run(interpreter, frame, receiver);
+    }
 
-        return null;
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d){
+        if (interpreter.jit != null) {
+            return call(interpreter, Arrays.asList(a, b, c, d));
+        }
+        Environment frame = frame(receiver);
+        int first = firstParameter(receiver);
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        frame.define(first + 2, c);
+        frame.define(first + 3, d);
+        return run(interpreter, frame, receiver);
     }
+
     @Override
     public int arity(){
      return declaration.params.size();   
@@ -1,21 +1,26 @@
 package lox;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
+// Fields live in a plain array, the Shape says which index is which field
 class LoxInstance {
-    private final Map<String, Object> fields = new HashMap<>();
-    private LoxClass klass;
+    // Package private for InlineCache
+    Shape shape;
+    Object[] values;
+    final LoxClass klass;
 
     LoxInstance(LoxClass klass){
         this.klass = klass;
+        this.shape = klass.shape;
+        this.values = new Object[klass.fieldCount];
     }
 
     Object get(token name){
-        if (fields.containsKey(name.lexemme)) {
-            return fields.get(name.lexemme);
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            return values[index];
         }
 
-        LoxFunction method = klass.findMethod(name.lexemme);
+        LoxFunction method = klass.findMethod(name.symbol);
         if (method != null) {
             return method.bind(this);
         }
@@ -24,7 +29,24 @@ class LoxInstance {
     }
 
     void set(token name, Object value){
-        fields.put(name.lexemme, value);
+        int index = shape.indexOf(name.symbol);
+        if (index < 0) {
+            addField(shape.withField(name.symbol), value);
+        } else {
+            values[index] = value;
+        }
+    }
+
+    // next is our shape plus one field, the value goes in that new last slot
+    void addField(Shape next, Object value){
+        shape = next;
+        int index = next.size - 1;
+        if (index == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        values[index] = value;
+        // So the next instances start out big enough
+        klass.fieldCount = Math.max(klass.fieldCount, next.size);
     }
 
     @Override
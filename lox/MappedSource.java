@@ -0,0 +1,62 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A script file seen straight through a memory mapping, so a big generated
+// script never gets copied onto the heap (not as a byte[], not as a String).
+// The Scanner only needs charAt: everything that means something in Lox is
+// ASCII, so a byte is a char. Other bytes can only be inside string literals
+// and comments, text() decodes those properly when a literal needs its value.
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final Charset charset;
+
+    private MappedSource(ByteBuffer bytes, Charset charset){
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    static MappedSource map(Path path, Charset charset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            // Indexes are ints, same limit a String would have had
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too big to run, over 2GB.");
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset);
+        }
+    }
+
+    @Override
+    public int length(){
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index){
+        return (char)(bytes.get(index) & 0xff);
+    }
+
+    // The chars between start and end as a real String
+    String text(int start, int end){
+        byte[] copy = new byte[end - start];
+        bytes.get(start, copy);
+        return new String(copy, charset);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return text(start, end);
+    }
+
+    @Override
+    public String toString(){
+        return text(0, length());
+    }
+}
@@ -0,0 +1,49 @@
+package lox;
+
+// Instruction set of the bytecode VM.
+// Plain byte constants instead of an enum so the VM can switch on the raw code.
+// Operands follow the opcode: "c16" is a two byte constant index, "u8" a single byte.
+final class OpCode {
+    private OpCode(){}
+
+    static final byte CONSTANT      = 0;  // c16
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // u8 slot
+    static final byte SET_LOCAL     = 6;  // u8 slot
+    static final byte GET_GLOBAL    = 7;  // c16 name
+    static final byte DEFINE_GLOBAL = 8;  // c16 name
+    static final byte SET_GLOBAL    = 9;  // c16 name
+    static final byte GET_UPVALUE   = 10; // u8 index
+    static final byte SET_UPVALUE   = 11; // u8 index
+    static final byte GET_PROPERTY  = 12; // c16 name
+    static final byte SET_PROPERTY  = 13; // c16 name
+    static final byte GET_SUPER     = 14; // c16 name
+    static final byte EQUAL         = 15;
+    static final byte NOT_EQUAL     = 16;
+    static final byte GREATER       = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS          = 19;
+    static final byte LESS_EQUAL    = 20;
+    static final byte ADD           = 21;
+    static final byte SUBTRACT      = 22;
+    static final byte MULTIPLY      = 23;
+    static final byte DIVIDE        = 24;
+    static final byte NOT           = 25;
+    static final byte NEGATE        = 26;
+    static final byte PRINT         = 27;
+    static final byte JUMP          = 28; // u16 forward offset
+    static final byte JUMP_IF_FALSE = 29; // u16 forward offset, leaves the condition on the stack
+    static final byte LOOP          = 30; // u16 backward offset
+    static final byte CALL          = 31; // u8 argument count
+    static final byte INVOKE        = 32; // c16 name, u8 argument count
+    static final byte SUPER_INVOKE  = 33; // c16 name, u8 argument count
+    static final byte CLOSURE       = 34; // c16 function, then (u8 isLocal, u8 index) per upvalue
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN        = 36;
+    static final byte CLASS         = 37; // c16 name
+    static final byte INHERIT       = 38;
+    static final byte METHOD        = 39; // c16 name
+}
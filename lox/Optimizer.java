@@ -0,0 +1,943 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A pass over the resolved tree before it runs:
+//   - constant folding: 1 + 2 * 3 becomes 7, "a" + "b" becomes "ab", !nil becomes true...
+//   - if/while with a constant condition keep only the branch that can run
+//   - statements after a return are dropped
+//   - expression statements that do nothing (like "x;" or "1 + 2;") are dropped
+//   - blocks that declare nothing are merged into the enclosing one
+//   - loop invariant operands of a while condition are computed once before the loop,
+//     only when it sees the whole program (see wholeProgram)
+//   - counted loops (for (var i = 0; i < n; i = i + 1)) get marked for Interpreter.countedLoop
+//   - calls to small global functions ("fun sq(x) { return x * x; }") are replaced
+//     by the function's body, see inline()
+// Nodes are rebuilt when something inside them changed, so the result has to
+// go through the Resolver again (jLox.run does that).
+// The program can also come in pieces (REPL lines, --stream declarations), one
+// Optimizer sees all of them and what it knows about names adds up. A later
+// piece can still assign or shadow a name an earlier one relied on, so
+// optimize() drops inlinable functions that stop qualifying, and hoisting
+// only runs on a whole program.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>{
+    // Every name assigned to somewhere in the program so far. A variable thats
+    // not in here keeps the value it was declared with.
+    private final Set<Symbol> assigned = new HashSet<>();
+    // Names assigned from inside a function that doesnt declare them, the only
+    // way a call can change a local of its caller
+    private final Set<Symbol> assignedByClosures = new HashSet<>();
+    private int hoisted = 0;
+    // Whether optimize() gets the whole program at once. Hoisting needs that,
+    // a later REPL line or --stream piece can assign a name that looked
+    // invariant when the loop was optimized.
+    private final boolean wholeProgram;
+
+    // Global functions whose calls can be replaced by their body
+    private final Map<Symbol, Stmt.Function> inlinable = new HashMap<>();
+    // The inlinable functions reading each global. Inlined inside the scope of
+    // a local with that name the body would read the local instead.
+    private final Map<Symbol, List<Symbol>> readers = new HashMap<>();
+    // How many times each global was declared, and names declared as locals anywhere
+    private final Map<Symbol, Integer> declarations = new HashMap<>();
+    private final Set<Symbol> locals = new HashSet<>();
+    // How many inlined bodies deep we are, so f -> g -> f stops somewhere
+    private int inlining = 0;
+    private static final int MAX_INLINING = 3;
+    private static final int MAX_INLINE_SIZE = 12;
+
+    Optimizer(boolean wholeProgram){
+        this.wholeProgram = wholeProgram;
+    }
+
+    List<Stmt> optimize(List<Stmt> program){
+        // An earlier piece's function might not qualify anymore: redeclared,
+        // assigned, or a local now shadows it or a global it reads. Only
+        // what this piece adds is checked, so a long --stream stays linear.
+        // Code that already inlined it is still fine, its guard sees the
+        // global changed and no new local can be around code that already ran.
+        Set<Symbol> assignedHere = new HashSet<>();
+        Set<Symbol> localsHere = new HashSet<>();
+        for (Stmt statement : program) {
+            assignedNames(statement, assignedHere);
+            closureAssignments(statement, assignedByClosures);
+            localNames(statement, localsHere, true);
+            Symbol declared = declaredName(statement);
+            if (declared != null && declarations.merge(declared, 1, Integer::sum) > 1) {
+                inlinable.remove(declared);
+            }
+        }
+        assigned.addAll(assignedHere);
+        locals.addAll(localsHere);
+        inlinable.keySet().removeAll(assignedHere);
+        for (Symbol local : localsHere) {
+            inlinable.remove(local);
+            List<Symbol> functions = readers.remove(local);
+            if (functions != null) {
+                inlinable.keySet().removeAll(functions);
+            }
+        }
+
+        for (Stmt statement : program) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function)statement;
+                Symbol name = function.name.symbol;
+                Set<Symbol> reads = new HashSet<>();
+                // Declared once and never assigned, so the global always is this function once it exists
+                if (declarations.get(name) == 1 && !assigned.contains(name) && !locals.contains(name)
+                    && isInlinable(function, locals, reads)) {
+                    inlinable.put(name, function);
+                    for (Symbol read : reads) {
+                        readers.computeIfAbsent(read, key -> new ArrayList<>()).add(name);
+                    }
+                }
+            }
+        }
+        return optimizeAll(program);
+    }
+
+    // The global a top level statement declares, null if none
+    private static Symbol declaredName(Stmt stmt){
+        if (stmt instanceof Stmt.Var) {
+            return ((Stmt.Var)stmt).name.symbol;
+        } else if (stmt instanceof Stmt.Function) {
+            return ((Stmt.Function)stmt).name.symbol;
+        } else if (stmt instanceof Stmt.Class) {
+            return ((Stmt.Class)stmt).name.symbol;
+        }
+        return null;
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements){
+        List<Stmt> result = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized instanceof Stmt.Block && !declares(((Stmt.Block)optimized).statements)) {
+                // No scope of its own needed, saves an Environment every time it runs
+                result.addAll(((Stmt.Block)optimized).statements);
+            } else if (optimized != null) {
+                result.add(optimized);
+            }
+            // Nothing after a return can run
+            if (!result.isEmpty() && result.get(result.size() - 1) instanceof Stmt.Return) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    // null when the statement can go away entirely
+    private Stmt optimize(Stmt stmt){
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr){
+        return expr.accept(this);
+    }
+
+    // For places that need a statement even if its gone
+    private Stmt orEmpty(Stmt stmt){
+        return stmt != null ? stmt : new Stmt.Block(new ArrayList<>());
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt){
+        return new Stmt.Block(optimizeAll(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt){
+        List<Stmt.Function> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add((Stmt.Function)optimize(method));
+        }
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt){
+        Expr expression = optimize(stmt.expression);
+        if (isPure(expression)) {
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt){
+        return new Stmt.Function(stmt.name, stmt.params, optimizeAll(stmt.body));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt){
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt){
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt){
+        if (stmt.value == null) {
+            return stmt;
+        }
+        Expr value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt){
+        if (stmt.initializer == null) {
+            return stmt;
+        }
+        Expr initializer = optimize(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt){
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        Stmt body = orEmpty(optimize(stmt.body));
+
+        // Hoist invariant operands of the comparison, "i < n * 2" becomes
+        //   var t = n * 2; while (i < t) ...
+        // The right side only moves if the left one cant have side effects,
+        // otherwise they would run in a different order.
+        List<Stmt> hoists = new ArrayList<>();
+        if (wholeProgram && condition instanceof Expr.Binary && isComparison(((Expr.Binary)condition).operator)) {
+            Expr.Binary binary = (Expr.Binary)condition;
+            Expr left = hoist(binary.left, hoists);
+            Expr right = isPure(left) ? hoist(binary.right, hoists) : binary.right;
+            if (left != binary.left || right != binary.right) {
+                condition = new Expr.Binary(left, binary.operator, right);
+            }
+        }
+
+        Stmt.While loop = new Stmt.While(condition, body);
+        loop.counted = isCounted(loop);
+        if (hoists.isEmpty()) {
+            return loop;
+        }
+        hoists.add(loop);
+        return new Stmt.Block(hoists);
+    }
+
+    // Replaces an invariant expression by a temporary declared in hoists.
+    // The name starts with a space so it cant clash with anything in the script.
+    private Expr hoist(Expr expr, List<Stmt> hoists){
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable || !isInvariant(expr)) {
+            return expr;
+        }
+        token name = new token(tokenType.IDENTIFIER, " hoisted" + hoisted++, null, line(expr));
+        hoists.add(new Stmt.Var(name, expr));
+        return new Expr.Variable(name);
+    }
+
+    // for (var i = a; i < b; i = i + step) after Parser.forStatement:
+    //   while (i < b) { ...; i = i + step; }
+    // where the block declares nothing and i is a local that only the
+    // increment assigns. Step has to be a number literal.
+    private static boolean isCounted(Stmt.While loop){
+        if (!(loop.condition instanceof Expr.Binary) || !(loop.body instanceof Stmt.Block)) {
+            return false;
+        }
+        Expr.Binary condition = (Expr.Binary)loop.condition;
+        if (!isComparison(condition.operator) || !(condition.left instanceof Expr.Variable)) {
+            return false;
+        }
+        Symbol counter = ((Expr.Variable)condition.left).name.symbol;
+        List<Stmt> statements = ((Stmt.Block)loop.body).statements;
+        if (statements.isEmpty() || declares(statements)) {
+            return false;
+        }
+
+        Stmt last = statements.get(statements.size() - 1);
+        if (!(last instanceof Stmt.Expression) || !(((Stmt.Expression)last).expression instanceof Expr.Assign)) {
+            return false;
+        }
+        Expr.Assign increment = (Expr.Assign)((Stmt.Expression)last).expression;
+        if (increment.name.symbol != counter || !(increment.value instanceof Expr.Binary)) {
+            return false;
+        }
+        Expr.Binary step = (Expr.Binary)increment.value;
+        boolean addsNumber = (step.operator.type == tokenType.PLUS || step.operator.type == tokenType.MINUS)
+            && step.left instanceof Expr.Variable
+            && ((Expr.Variable)step.left).name.symbol == counter
+            && step.right instanceof Expr.Literal
+            && ((Expr.Literal)step.right).value instanceof Double;
+        if (!addsNumber) {
+            return false;
+        }
+
+        Set<Symbol> names = new HashSet<>();
+        assignedNames(condition.right, names);
+        for (Stmt statement : statements.subList(0, statements.size() - 1)) {
+            assignedNames(statement, names);
+        }
+        return !names.contains(counter);
+    }
+
+    // Expressions
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr){
+        Expr value = optimize(expr.value);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr){
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                Object value = Interpreter.binary(expr.operator,
+                    ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+                // Literals are always plain Strings, the VM's constants too
+                return new Expr.Literal(value instanceof Rope ? value.toString() : value);
+            } catch (RuntimeError error) {
+                // Like 1 - "a", leave it so it fails when it actually runs
+            }
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr){
+        Expr callee = optimize(expr.callee);
+        boolean changed = callee != expr.callee;
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        Expr.Call call = changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+        Expr inlined = inline(call);
+        return inlined != null ? inlined : call;
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr){
+        Expr object = optimize(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr){
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) {
+            return expression;
+        }
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr){
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            // "or" stops at a truthy left side, "and" at a falsey one
+            boolean shortCircuits = expr.operator.type == tokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr){
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) {
+            return expr;
+        }
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr){
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == tokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (expr.operator.type == tokenType.MINUS && value instanceof Double) {
+                return new Expr.Literal(-(double)value);
+            }
+        }
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr){
+        return expr;
+    }
+
+    // Inlining
+
+    // A global function whose body is a single "return expression;" with no
+    // locals in it and nothing that could mean something else at the call
+    // site: every other name it uses is a global no scope anywhere shadows.
+    // Those globals are added to reads.
+    private static boolean isInlinable(Stmt.Function function, Set<Symbol> locals, Set<Symbol> reads){
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) {
+            return false;
+        }
+        Expr body = ((Stmt.Return)function.body.get(0)).value;
+        if (body == null) {
+            return false;
+        }
+        Set<Symbol> parameters = new HashSet<>();
+        for (token param : function.params) {
+            parameters.add(param.symbol);
+        }
+        int[] size = {0};
+        return canInline(body, function, parameters, locals, reads, size) && size[0] <= MAX_INLINE_SIZE;
+    }
+
+    private static boolean canInline(Expr expr, Stmt.Function function, Set<Symbol> parameters,
+                                     Set<Symbol> locals, Set<Symbol> reads, int[] size){
+        size[0]++;
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            Symbol name = ((Expr.Variable)expr).name.symbol;
+            if (parameters.contains(name)) {
+                return true;
+            }
+            reads.add(name);
+            // Its own name would make it recursive
+            return !locals.contains(name) && name != function.name.symbol;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return canInline(((Expr.Grouping)expr).expression, function, parameters, locals, reads, size);
+        }
+        if (expr instanceof Expr.Unary) {
+            return canInline(((Expr.Unary)expr).right, function, parameters, locals, reads, size);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return canInline(binary.left, function, parameters, locals, reads, size)
+                && canInline(binary.right, function, parameters, locals, reads, size);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return canInline(logical.left, function, parameters, locals, reads, size)
+                && canInline(logical.right, function, parameters, locals, reads, size);
+        }
+        if (expr instanceof Expr.Get) {
+            return canInline(((Expr.Get)expr).object, function, parameters, locals, reads, size);
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            if (!canInline(call.callee, function, parameters, locals, reads, size)) {
+                return false;
+            }
+            for (Expr argument : call.arguments) {
+                if (!canInline(argument, function, parameters, locals, reads, size)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // Assignments, this, super...
+        return false;
+    }
+
+    // Replaces a call to an inlinable function by a copy of its body with the
+    // arguments put in for the parameters. null if it cant be done here.
+    // The result keeps the call around, it still runs if the global turns out
+    // to be something else by then (see Interpreter.stillInlined).
+    private Expr inline(Expr.Call call){
+        if (!(call.callee instanceof Expr.Variable) || inlining >= MAX_INLINING) {
+            return null;
+        }
+        Expr.Variable callee = (Expr.Variable)call.callee;
+        Stmt.Function function = inlinable.get(callee.name.symbol);
+        // A local of the same name would be a different function
+        if (function == null || callee.depth >= 0 || function.params.size() != call.arguments.size()) {
+            return null;
+        }
+        Expr body = ((Stmt.Return)function.body.get(0)).value;
+        if (!argumentsFit(function, body, call.arguments)) {
+            return null;
+        }
+
+        Map<Symbol, Expr> arguments = new HashMap<>();
+        for (int i = 0; i < function.params.size(); i++) {
+            arguments.put(function.params.get(i).symbol, call.arguments.get(i));
+        }
+        inlining++;
+        try {
+            return new Expr.Inline(call, function.name, optimize(substitute(body, arguments)));
+        } finally {
+            inlining--;
+        }
+    }
+
+    // A real call evaluates every argument once, up front. Inlined, an argument
+    // is evaluated wherever the body uses the parameter. Thats the same thing
+    // if the argument cant fail and gives the same value every time. Otherwise
+    // each parameter has to be used exactly once, in order, before the body
+    // does anything that could fail or have an effect.
+    private boolean argumentsFit(Stmt.Function function, Expr body, List<Expr> arguments){
+        boolean stable = true;
+        for (Expr argument : arguments) {
+            stable &= isStable(argument);
+        }
+        if (stable) {
+            return true;
+        }
+        List<Integer> order = new ArrayList<>();
+        if (!evaluationOrder(body, function.params, order)) {
+            return false;
+        }
+        int used = 0;
+        for (int index : order) {
+            if (index >= 0) {
+                used++;
+            }
+        }
+        if (used != arguments.size()) {
+            return false;
+        }
+        for (int i = 0; i < used; i++) {
+            if (order.get(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isStable(Expr argument){
+        if (argument instanceof Expr.Literal || argument instanceof Expr.This) {
+            return true;
+        }
+        if (argument instanceof Expr.Variable && ((Expr.Variable)argument).depth >= 0) {
+            // The body cant assign it, only a call to some closure could
+            return !assignedByClosures.contains(((Expr.Variable)argument).name.symbol);
+        }
+        return false;
+    }
+
+    // Finds every function under stmt and adds the names it assigns
+    // without declaring them itself (nested functions are checked on their own)
+    private static void closureAssignments(Stmt stmt, Set<Symbol> names){
+        if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function)stmt;
+            Set<Symbol> own = new HashSet<>();
+            Set<Symbol> assigned = new HashSet<>();
+            for (token param : function.params) {
+                own.add(param.symbol);
+            }
+            for (Stmt statement : function.body) {
+                ownNames(statement, own, assigned);
+            }
+            assigned.removeAll(own);
+            names.addAll(assigned);
+            for (Stmt statement : function.body) {
+                closureAssignments(statement, names);
+            }
+        } else if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                closureAssignments(method, names);
+            }
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                closureAssignments(statement, names);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            closureAssignments(((Stmt.If)stmt).thenBranch, names);
+            if (((Stmt.If)stmt).elseBranch != null) {
+                closureAssignments(((Stmt.If)stmt).elseBranch, names);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            closureAssignments(((Stmt.While)stmt).body, names);
+        }
+    }
+
+    // Declarations and assignments in one function body, not looking into nested functions
+    private static void ownNames(Stmt stmt, Set<Symbol> declared, Set<Symbol> assigned){
+        if (stmt instanceof Stmt.Var) {
+            declared.add(((Stmt.Var)stmt).name.symbol);
+            assignedNames(((Stmt.Var)stmt).initializer, assigned);
+        } else if (stmt instanceof Stmt.Function) {
+            declared.add(((Stmt.Function)stmt).name.symbol);
+        } else if (stmt instanceof Stmt.Class) {
+            declared.add(((Stmt.Class)stmt).name.symbol);
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                ownNames(statement, declared, assigned);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            assignedNames(ifStmt.condition, assigned);
+            ownNames(ifStmt.thenBranch, declared, assigned);
+            if (ifStmt.elseBranch != null) {
+                ownNames(ifStmt.elseBranch, declared, assigned);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            assignedNames(((Stmt.While)stmt).condition, assigned);
+            ownNames(((Stmt.While)stmt).body, declared, assigned);
+        } else {
+            // Expression, print and return only hold expressions
+            assignedNames(stmt, assigned);
+        }
+    }
+
+    // What the body does in the order it runs: the index of a parameter when
+    // its read, -1 for anything that can fail or have an effect. false if
+    // that order depends on the values (and, or).
+    private static boolean evaluationOrder(Expr expr, List<token> params, List<Integer> order){
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            Symbol name = ((Expr.Variable)expr).name.symbol;
+            int index = -1;
+            for (int i = 0; i < params.size(); i++) {
+                if (params.get(i).symbol == name) {
+                    index = i;
+                }
+            }
+            // Anything else is a global, which might not be defined
+            order.add(index);
+            return true;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return evaluationOrder(((Expr.Grouping)expr).expression, params, order);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (!evaluationOrder(unary.right, params, order)) {
+                return false;
+            }
+            if (unary.operator.type != tokenType.BANG) {
+                order.add(-1);
+            }
+            return true;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (!evaluationOrder(binary.left, params, order) || !evaluationOrder(binary.right, params, order)) {
+                return false;
+            }
+            if (binary.operator.type != tokenType.EQUAL_EQUAL && binary.operator.type != tokenType.BANG_EQUAL) {
+                order.add(-1);
+            }
+            return true;
+        }
+        if (expr instanceof Expr.Get) {
+            if (!evaluationOrder(((Expr.Get)expr).object, params, order)) {
+                return false;
+            }
+            order.add(-1);
+            return true;
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            if (!evaluationOrder(call.callee, params, order)) {
+                return false;
+            }
+            for (Expr argument : call.arguments) {
+                if (!evaluationOrder(argument, params, order)) {
+                    return false;
+                }
+            }
+            order.add(-1);
+            return true;
+        }
+        return false;
+    }
+
+    // A fresh copy of an inlinable body (see canInline for what can be in it)
+    // with the parameters replaced. Every call site gets its own nodes since
+    // the Resolver and the inline caches keep state in them.
+    private static Expr substitute(Expr expr, Map<Symbol, Expr> arguments){
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            Expr argument = arguments.get(variable.name.symbol);
+            if (argument != null) {
+                return argument;
+            }
+            Expr.Variable copy = new Expr.Variable(variable.name);
+            copy.depth = variable.depth;
+            copy.slot = variable.slot;
+            return copy;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(substitute(((Expr.Grouping)expr).expression, arguments));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return new Expr.Unary(unary.operator, substitute(unary.right, arguments));
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return new Expr.Binary(substitute(binary.left, arguments), binary.operator,
+                substitute(binary.right, arguments));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return new Expr.Logical(substitute(logical.left, arguments), logical.operator,
+                substitute(logical.right, arguments));
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            return new Expr.Get(substitute(get.object, arguments), get.name);
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            List<Expr> copies = new ArrayList<>();
+            for (Expr argument : call.arguments) {
+                copies.add(substitute(argument, arguments));
+            }
+            return new Expr.Call(substitute(call.callee, arguments), call.paren, copies);
+        }
+        // Literals never change
+        return expr;
+    }
+
+    // Adds every name declared somewhere other than the top level:
+    // locals, parameters, nested functions and classes
+    private static void localNames(Stmt stmt, Set<Symbol> names, boolean topLevel){
+        if (!topLevel) {
+            if (stmt instanceof Stmt.Var) {
+                names.add(((Stmt.Var)stmt).name.symbol);
+            } else if (stmt instanceof Stmt.Function) {
+                names.add(((Stmt.Function)stmt).name.symbol);
+            } else if (stmt instanceof Stmt.Class) {
+                names.add(((Stmt.Class)stmt).name.symbol);
+            }
+        }
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                localNames(statement, names, false);
+            }
+        } else if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                functionNames(method, names);
+            }
+        } else if (stmt instanceof Stmt.Function) {
+            functionNames((Stmt.Function)stmt, names);
+        } else if (stmt instanceof Stmt.If) {
+            localNames(((Stmt.If)stmt).thenBranch, names, false);
+            if (((Stmt.If)stmt).elseBranch != null) {
+                localNames(((Stmt.If)stmt).elseBranch, names, false);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            localNames(((Stmt.While)stmt).body, names, false);
+        }
+    }
+
+    private static void functionNames(Stmt.Function function, Set<Symbol> names){
+        for (token param : function.params) {
+            names.add(param.symbol);
+        }
+        for (Stmt statement : function.body) {
+            localNames(statement, names, false);
+        }
+    }
+
+    private static boolean isComparison(token operator){
+        switch (operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether a block with these statements needs a scope of its own
+    private static boolean declares(List<Stmt> statements){
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Gives the same value every time its evaluated: operators over literals
+    // and variables nobody assigns to. It can still fail (-"a"), but then it
+    // fails the same way on every iteration, hoisted or not.
+    private boolean isInvariant(Expr expr){
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            return !assigned.contains(((Expr.Variable)expr).name.symbol);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isInvariant(((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            return isInvariant(((Expr.Unary)expr).right);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return isInvariant(binary.left) && isInvariant(binary.right);
+        }
+        return false;
+    }
+
+    // Line of the first token under expr, for the hoisted temporaries
+    private static int line(Expr expr){
+        if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary)expr).operator.line;
+        }
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.line;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return line(((Expr.Grouping)expr).expression);
+        }
+        return 0;
+    }
+
+    // Adds the name of every variable assigned anywhere under stmt,
+    // function and method bodies included
+    private static void assignedNames(Stmt stmt, Set<Symbol> names){
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                assignedNames(statement, names);
+            }
+        } else if (stmt instanceof Stmt.Class) {
+            for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                assignedNames(method, names);
+            }
+        } else if (stmt instanceof Stmt.Expression) {
+            assignedNames(((Stmt.Expression)stmt).expression, names);
+        } else if (stmt instanceof Stmt.Function) {
+            for (Stmt statement : ((Stmt.Function)stmt).body) {
+                assignedNames(statement, names);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            assignedNames(ifStmt.condition, names);
+            assignedNames(ifStmt.thenBranch, names);
+            assignedNames(ifStmt.elseBranch, names);
+        } else if (stmt instanceof Stmt.Print) {
+            assignedNames(((Stmt.Print)stmt).expression, names);
+        } else if (stmt instanceof Stmt.Return) {
+            assignedNames(((Stmt.Return)stmt).value, names);
+        } else if (stmt instanceof Stmt.Var) {
+            assignedNames(((Stmt.Var)stmt).initializer, names);
+        } else if (stmt instanceof Stmt.While) {
+            assignedNames(((Stmt.While)stmt).condition, names);
+            assignedNames(((Stmt.While)stmt).body, names);
+        }
+    }
+
+    private static void assignedNames(Expr expr, Set<Symbol> names){
+        if (expr instanceof Expr.Assign) {
+            names.add(((Expr.Assign)expr).name.symbol);
+            assignedNames(((Expr.Assign)expr).value, names);
+        } else if (expr instanceof Expr.Binary) {
+            assignedNames(((Expr.Binary)expr).left, names);
+            assignedNames(((Expr.Binary)expr).right, names);
+        } else if (expr instanceof Expr.Logical) {
+            assignedNames(((Expr.Logical)expr).left, names);
+            assignedNames(((Expr.Logical)expr).right, names);
+        } else if (expr instanceof Expr.Call) {
+            assignedNames(((Expr.Call)expr).callee, names);
+            for (Expr argument : ((Expr.Call)expr).arguments) {
+                assignedNames(argument, names);
+            }
+        } else if (expr instanceof Expr.Get) {
+            assignedNames(((Expr.Get)expr).object, names);
+        } else if (expr instanceof Expr.Set) {
+            assignedNames(((Expr.Set)expr).object, names);
+            assignedNames(((Expr.Set)expr).value, names);
+        } else if (expr instanceof Expr.Grouping) {
+            assignedNames(((Expr.Grouping)expr).expression, names);
+        } else if (expr instanceof Expr.Unary) {
+            assignedNames(((Expr.Unary)expr).right, names);
+        }
+    }
+
+    // True if evaluating it has no side effects and cant fail,
+    // so if the value isnt used it can just not be evaluated
+    private static boolean isPure(Expr expr){
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            // Globals might not be defined, that has to stay an error
+            return ((Expr.Variable)expr).depth >= 0;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isPure(((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operator.type == tokenType.BANG && isPure(unary.right);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return isPure(logical.left) && isPure(logical.right);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            boolean equality = binary.operator.type == tokenType.EQUAL_EQUAL
+                || binary.operator.type == tokenType.BANG_EQUAL;
+            return equality && isPure(binary.left) && isPure(binary.right);
+        }
+        return false;
+    }
+}
@@ -10,11 +10,20 @@ import static lox.tokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException{}
-    private final List<token> tokens;
+    // Tokens are indexes into the buffer, only the ones that end up in the
+    // tree become token objects. The grammar never needs more than the
+    // current token and the one just consumed.
+    private final TokenBuffer tokens;
     private int current = 0;
+    // Type of the current token, check() looks at it all the time
+    private tokenType currentType;
+    // The last token object made, so asking for the same one twice gives the same object
+    private int madeIndex = -1;
+    private token made = null;
 
-    Parser(List<token> tokens){
+    Parser(TokenBuffer tokens){
         this.tokens= tokens;
+        this.currentType = tokens.type(0);
     }
     // visit later when add statements
     // for now its just a single expression
@@ -26,10 +35,24 @@ public class Parser {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
             statements.add(declaration());
+            tokens.release(current - 1);
         }
         return statements;
     }
 
+    // The streaming version of parse(): one top level declaration per call,
+    // only the tokens of that declaration get scanned
+    boolean hasNext(){
+        return !isAtEnd();
+    }
+
+    // null if it had a syntax error
+    Stmt next(){
+        Stmt declaration = declaration();
+        tokens.release(current - 1);
+        return declaration;
+    }
+
     private Expr expression(){
         return assignment();
     }
@@ -423,7 +446,8 @@ public class Parser {
 
     private token consume(tokenType type, String message){
         if (check(type)) {
-            return advance();
+            advance();
+            return previous();
         }
         throw error(peek(),message);
     }
@@ -433,15 +457,15 @@ public class Parser {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return currentType == type;
     }
 
-    // consumes and returns the token
-    private token advance(){
+    // consumes the token, previous() has it if its needed
+    private void advance(){
         if (!isAtEnd()) {
-            current ++;
+            current++;
+            currentType = tokens.type(current);
         }
-        return previous();
     }
 
     // Enter panic mode to report error from consumes()
@@ -456,10 +480,10 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) {
+            if (tokens.type(current - 1) == SEMICOLON) {
                 return;
             }
-            switch (peek().type) {
+            switch (currentType) {
                 case CLASS:
                 case FUN:    
                 case VAR:
@@ -476,14 +500,22 @@ public class Parser {
 
     // Other primitive funcions
     private boolean isAtEnd() {
-    return peek().type == EOF;
+    return currentType == EOF;
   }
 
   private token peek() {
-    return tokens.get(current);
+    return token(current);
   }
 
   private token previous() {
-    return tokens.get(current - 1);
+    return token(current - 1);
+  }
+
+  private token token(int index) {
+    if (index != madeIndex) {
+        made = tokens.token(index);
+        madeIndex = index;
+    }
+    return made;
   }
 }
@@ -1,5 +1,6 @@
 package lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,12 +9,9 @@ import java.util.function.Function;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private FunctionType currentFunction = FunctionType.NONE;
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
-
-    Resolver(Interpreter interpreter){
-        this.interpreter = interpreter;
-    }
+    private final Stack<Scope> scopes = new Stack<>();
+    // The function whose body is being resolved, the top level being one too
+    private FunctionScope function = new FunctionScope(null, 0);
 
     private enum FunctionType{
         NONE,
@@ -30,11 +28,67 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     private ClassType currentClass= ClassType.NONE;
 
+    // Bumped for every function and class declaration. If it changed while a
+    // block or function body was resolved, something in there closes over
+    // its frame (and every frame around it). The others get a FramePool.
+    private int closures = 0;
+
+    // A local variable and the slot it got in its scope's frame.
+    // Slots are handed out in declaration order so a frame is just an array.
+    private static class Local {
+        final int slot;
+        // The Var, Function or Class that declared it, null for parameters, this and super
+        final Stmt declaration;
+        boolean defined = false;
+        // An inner function uses it, so it lives in a Cell
+        boolean captured = false;
+
+        Local(int slot, Stmt declaration){
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    private static class Scope {
+        final Map<Symbol, Local> locals = new HashMap<>();
+        // Slots handed out so far, locals and the captures of a function
+        int size = 0;
+    }
+
+    // Closures are flat: a function never reaches into the frames around it.
+    // Each variable it uses from an enclosing function gets a slot in its own
+    // frame (in the function's outermost scope) which holds the shared Cell.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        // Index in scopes of the function's own scope
+        final int base;
+        final Map<Local, Integer> captured = new HashMap<>();
+        final List<Capture> captures = new ArrayList<>();
+
+        FunctionScope(FunctionScope enclosing, int base){
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
+    // Where a variable ended up: depth -1 for a global
+    private static class Resolved {
+        final int depth;
+        final int slot;
+
+        Resolved(int depth, int slot){
+            this.depth = depth;
+            this.slot = slot;
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt){
+        int before = closures;
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.frameSize = endScope();
+        stmt.frames = closures == before ? new FramePool(stmt.frameSize) : null;
         return null;
     }
 
@@ -48,10 +102,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     public Void visitClassStmt(Stmt.Class stmt){
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
+        closures++;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
-        if (stmt.superclass != null && stmt.name.lexemme.equals(stmt.superclass.name.lexemme)) {
+        if (stmt.superclass != null && stmt.name.symbol == stmt.superclass.name.symbol) {
             jLox.error(stmt.superclass.name, "A class cant inherit from itself.");
         }
 
@@ -62,19 +117,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineSynthetic(Symbol.SUPER);
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexemme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) {
             endScope();
         }
@@ -84,8 +136,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt){
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
+        closures++;
 
         resolveFunction(stmt, FunctionType.FUNCTION);
 
@@ -119,6 +172,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             }
 
             resolve(stmt.value);
+            // Nothing left to do after the call, the runtime can jump into it
+            // instead of calling it (see LoxFunction.trampoline)
+            stmt.tailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -134,7 +190,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt){
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -145,7 +201,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitAssignExpr(Expr.Assign expr){
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Resolved resolved = resolveLocal(expr.name.symbol);
+        expr.depth = resolved.depth;
+        expr.slot = resolved.slot;
         return null;
     }
 
@@ -176,6 +234,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         return null;
     }
 
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr){
+        // Both get resolved, the call is what runs if the function was replaced
+        resolve(expr.call);
+        resolve(expr.body);
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr){
         return null;
@@ -202,7 +268,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         }else if (currentClass != ClassType.SUBCLASS) {
             jLox.error(expr.keyword, "Cant use super in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        Resolved resolved = resolveLocal(expr.keyword.symbol);
+        expr.depth = resolved.depth;
+        expr.slot = resolved.slot;
+        // Both live in the same frame, super is captured by the method (or
+        // whatever function super is used in) and this is its slot 0 or captured too
+        Resolved self = resolveLocal(Symbol.THIS);
+        expr.thisSlot = self.slot;
         return null;
     }
 
@@ -214,7 +286,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             return null;
         }
         
-        resolveLocal(expr, expr.keyword);
+        Resolved resolved = resolveLocal(expr.keyword.symbol);
+        expr.depth = resolved.depth;
+        expr.slot = resolved.slot;
         return null;
     }
 
@@ -228,10 +302,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr){
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexemme) == Boolean.FALSE) {
-            jLox.error(expr.name, "Cant read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.name.symbol);
+            if (local != null && !local.defined) {
+                jLox.error(expr.name, "Cant read local variable in its own initializer.");
+            }
         }
-        resolveLocal(expr, expr.name);
+        Resolved resolved = resolveLocal(expr.name.symbol);
+        expr.depth = resolved.depth;
+        expr.slot = resolved.slot;
         return null;
     }
 
@@ -248,13 +327,33 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private void resolveFunction(Stmt.Function function, FunctionType type){
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope enclosingScope = this.function;
+        this.function = new FunctionScope(enclosingScope, scopes.size());
+        int before = closures;
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // Methods get their receiver in slot 0 of their own frame
+            defineSynthetic(Symbol.THIS);
+        }
         for (token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
-        endScope();
+
+        // Parameters and this are already in the frame when the body starts,
+        // the ones something captured get put in a Cell at that point
+        List<Integer> boxed = new ArrayList<>();
+        for (Local local : scopes.peek().locals.values()) {
+            if (local.captured && local.declaration == null) {
+                boxed.add(local.slot);
+            }
+        }
+        function.boxed = boxed.stream().mapToInt(Integer::intValue).toArray();
+        function.captures = this.function.captures.toArray(new Capture[0]);
+        function.frameSize = endScope();
+        function.frames = closures == before ? new FramePool(function.frameSize) : null;
+        this.function = enclosingScope;
         currentFunction = enclosingFunction;
 
     }
@@ -264,38 +363,96 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     }
 
     private void beginScope(){
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope());
     }
 
-    private void endScope(){
-        scopes.pop();
+    // Returns how many slots the frame for this scope needs.
+    // By now its known which of its variables got captured.
+    private int endScope(){
+        Scope scope = scopes.pop();
+        for (Local local : scope.locals.values()) {
+            if (!local.captured) {
+                continue;
+            }
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var)local.declaration).captured = true;
+            } else if (local.declaration instanceof Stmt.Function) {
+                ((Stmt.Function)local.declaration).captured = true;
+            } else if (local.declaration instanceof Stmt.Class) {
+                ((Stmt.Class)local.declaration).captured = true;
+            }
+        }
+        return scope.size;
     }
 
-    private void declare(token name){
+    // Returns the slot of the new variable, or -1 if its a global
+    private int declare(token name, Stmt declaration){
         if (scopes.isEmpty()) {
-            return;
+            return -1;
         }
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexemme)) {
+        Scope scope = scopes.peek();
+        if (scope.locals.containsKey(name.symbol)) {
             jLox.error(name, "Already a variable named in this scope.");
+            return scope.locals.get(name.symbol).slot;
         }
 
-        scope.put(name.lexemme, false);
+        Local local = new Local(scope.size++, declaration);
+        scope.locals.put(name.symbol, local);
+        return local.slot;
     }
 
     private void define(token name){
         if (scopes.isEmpty()) {
             return;
         }
-        scopes.peek().put(name.lexemme, true);
+        scopes.peek().locals.get(name.symbol).defined = true;
+    }
+
+    // For "this" and "super", which the interpreter always puts in slot 0
+    private void defineSynthetic(Symbol name){
+        Local local = new Local(scopes.peek().size++, null);
+        local.defined = true;
+        scopes.peek().locals.put(name, local);
     }
 
-    private void resolveLocal(Expr expr, token name){
+    // How many scopes up the variable lives and its slot there, -1 if its a global.
+    // The result goes straight on the Expr node so the interpreter never has to look it up.
+    // Variables of an enclosing function come from this function's own captures.
+    private Resolved resolveLocal(Symbol name){
         for (int i = scopes.size() - 1  ; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexemme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-            }   
+            Local local = scopes.get(i).locals.get(name);
+            if (local == null) {
+                continue;
+            }
+            if (i >= function.base) {
+                return new Resolved(scopes.size() - 1 - i, local.slot);
+            }
+            return new Resolved(scopes.size() - 1 - function.base, capture(function, local, i));
+        }
+        return new Resolved(-1, -1);
+    }
+
+    // The slot in fn's frame for a variable declared in scopes[index], outside fn.
+    // If fn's enclosing function doesnt have it either, that one captures it first.
+    private int capture(FunctionScope fn, Local local, int index){
+        Integer slot = fn.captured.get(local);
+        if (slot != null) {
+            return slot;
+        }
+        local.captured = true;
+        // The closure is made in the scope right around the function
+        int declaredIn = fn.base - 1;
+        FunctionScope outer = fn.enclosing;
+        Capture capture;
+        int target = scopes.get(fn.base).size++;
+        if (index >= outer.base) {
+            capture = new Capture(declaredIn - index, local.slot, target);
+        } else {
+            capture = new Capture(declaredIn - outer.base, capture(outer, local, index), target);
         }
+        fn.captured.put(local, target);
+        fn.captures.add(capture);
+        return target;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package lox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by +, kept as the two halves until someone looks at it.
+// "s = s + piece" in a loop is then one small node per piece instead of
+// copying all of s every time. The first toString() (print, ==, stringify,
+// anything that needs the characters) builds the String once and keeps it.
+// Short results are just concatenated, a Rope only pays off for long ones.
+final class Rope {
+    // Below this many chars + makes a plain String
+    private static final int MIN_LENGTH = 256;
+
+    // Each is a String or a Rope, both null once flattened
+    private Object left;
+    private Object right;
+    private final int length;
+    private String flat;
+
+    private Rope(Object left, Object right, int length){
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value){
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // What + does once one side is a string, the other side gets stringified
+    static Object concat(Object left, Object right){
+        if (!isString(left)) {
+            left = Interpreter.stringify(left);
+        }
+        if (!isString(right)) {
+            right = Interpreter.stringify(right);
+        }
+        int length = length(left) + length(right);
+        if (length < MIN_LENGTH) {
+            return left.toString() + right.toString();
+        }
+        return new Rope(left, right, length);
+    }
+
+    private static int length(Object string){
+        return string instanceof Rope ? ((Rope)string).length : ((String)string).length();
+    }
+
+    @Override
+    public String toString(){
+        if (flat == null) {
+            flatten();
+        }
+        return flat;
+    }
+
+    // Left to right with our own stack, a loop makes ropes thousands of nodes deep
+    private void flatten(){
+        StringBuilder builder = new StringBuilder(length);
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object part = pending.pop();
+            if (part instanceof String) {
+                builder.append((String)part);
+                continue;
+            }
+            Rope rope = (Rope)part;
+            if (rope.flat != null) {
+                builder.append(rope.flat);
+            } else {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            }
+        }
+        flat = builder.toString();
+        // The halves arent needed anymore, let them go
+        left = null;
+        right = null;
+    }
+
+    // Only equal to another Rope, Interpreter.isEqual flattens before
+    // comparing so a Rope and a String with the same text are equal in Lox
+    @Override
+    public boolean equals(Object other){
+        return other instanceof Rope && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode(){
+        return toString().hashCode();
+    }
+}
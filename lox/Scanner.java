@@ -1,51 +1,128 @@
 package lox;
 
 
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+// Tokens are scanned on demand, a TokenBuffer pulls them through scan() so
+// the whole list never has to exist at once. scan() only says where the
+// token is, token() makes the object for one the Parser wants to keep.
 class Scanner { // SCAN!!!!
-    private final String source;
-    private final List<token> tokens= new ArrayList<>();
+    // A String from the prompt, or a MappedSource for a file
+    private final CharSequence source;
+    // What scanToken() found, null if it was only whitespace or a comment
+    private tokenType scanned = null;
+    // The name of the identifier or keyword it found, null for other tokens
+    private Symbol symbol = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     // Keyword Map or smth  
-    private static final Map<String, tokenType> keywords;
+    private static final Map<Symbol, tokenType> keywords;
     static{
         keywords = new HashMap<>();
-        keywords.put("and", tokenType.AND);
-        keywords.put("class", tokenType.CLASS);
-        keywords.put("else", tokenType.ELSE);
-        keywords.put("false", tokenType.FALSE);
-        keywords.put("for", tokenType.FOR);
-        keywords.put("fun", tokenType.FUN);
-        keywords.put("if", tokenType.IF);
-        keywords.put("nil", tokenType.NIL);
-        keywords.put("or", tokenType.OR);
-        keywords.put("print", tokenType.PRINT);
-        keywords.put("return", tokenType.RETURN);
-        keywords.put("super", tokenType.SUPER);
-        keywords.put("this", tokenType.THIS);
-        keywords.put("true", tokenType.TRUE);
-        keywords.put("var", tokenType.VAR);
-        keywords.put("while", tokenType.WHILE);
+        keywords.put(Symbol.intern("and"), tokenType.AND);
+        keywords.put(Symbol.intern("class"), tokenType.CLASS);
+        keywords.put(Symbol.intern("else"), tokenType.ELSE);
+        keywords.put(Symbol.intern("false"), tokenType.FALSE);
+        keywords.put(Symbol.intern("for"), tokenType.FOR);
+        keywords.put(Symbol.intern("fun"), tokenType.FUN);
+        keywords.put(Symbol.intern("if"), tokenType.IF);
+        keywords.put(Symbol.intern("nil"), tokenType.NIL);
+        keywords.put(Symbol.intern("or"), tokenType.OR);
+        keywords.put(Symbol.intern("print"), tokenType.PRINT);
+        keywords.put(Symbol.intern("return"), tokenType.RETURN);
+        keywords.put(Symbol.intern("super"), tokenType.SUPER);
+        keywords.put(Symbol.intern("this"), tokenType.THIS);
+        keywords.put(Symbol.intern("true"), tokenType.TRUE);
+        keywords.put(Symbol.intern("var"), tokenType.VAR);
+        keywords.put(Symbol.intern("while"), tokenType.WHILE);
     }
-    Scanner(String source){
+    // Operators always have the same text, no need for a new String per token
+    private static final Map<tokenType, String> fixed = new EnumMap<>(tokenType.class);
+    static{
+        fixed.put(tokenType.LEFT_PAREN, "(");
+        fixed.put(tokenType.RIGHT_PAREN, ")");
+        fixed.put(tokenType.LEFT_BRACE, "{");
+        fixed.put(tokenType.RIGHT_BRACE, "}");
+        fixed.put(tokenType.COMMA, ",");
+        fixed.put(tokenType.DOT, ".");
+        fixed.put(tokenType.MINUS, "-");
+        fixed.put(tokenType.PLUS, "+");
+        fixed.put(tokenType.SEMICOLON, ";");
+        fixed.put(tokenType.STAR, "*");
+        fixed.put(tokenType.SLASH, "/");
+        fixed.put(tokenType.BANG, "!");
+        fixed.put(tokenType.BANG_EQUAL, "!=");
+        fixed.put(tokenType.EQUAL, "=");
+        fixed.put(tokenType.EQUAL_EQUAL, "==");
+        fixed.put(tokenType.LESS, "<");
+        fixed.put(tokenType.LESS_EQUAL, "<=");
+        fixed.put(tokenType.GREATER, ">");
+        fixed.put(tokenType.GREATER_EQUAL, ">=");
+    }
+    Scanner(CharSequence source){
         this.source = source;
     }
 
-    List<token> scanTokens(){
+    // Scans the next token and returns its type, it sits between start() and
+    // end() on line(). EOF (an empty token) forever once the source is done.
+    tokenType scan(){
+        symbol = null;
         while (!isAtEnd()) {
             // We are  at the begging of the next lexemme !
             start = current;
             scanToken();
+            if (scanned != null) {
+                tokenType type = scanned;
+                scanned = null;
+                return type;
+            }
+        }
+        start = current;
+        return tokenType.EOF;
+    }
+
+    int start(){
+        return start;
+    }
+
+    int end(){
+        return current;
+    }
+
+    int line(){
+        return line;
+    }
+
+    Symbol symbol(){
+        return symbol;
+    }
+
+    // The token object for something scan() found earlier, symbol is what
+    // symbol() said then (null for anything but identifiers and keywords)
+    token token(tokenType type, int start, int end, int line, Symbol symbol){
+        // Identifiers and keywords, by far the most common
+        if (symbol != null) {
+            return new token(type, symbol, line);
+        }
+        switch (type) {
+            case EOF:
+                return new token(type, "", null, line);
+            case NUMBER: {
+                String text = text(start, end);
+                return new token(type, text, Double.parseDouble(text), line);
+            }
+            case STRING: {
+                // Trim the surrounding quotes " "
+                String value = text(start + 1, end - 1);
+                return new token(type, '"' + value + '"', value, line);
+            }
+            default:
+                return new token(type, fixed.get(type), null, line);
         }
-        tokens.add(new token(tokenType.EOF,"", null, line));
-        return tokens;
     }
 
     // If consumed all characters
@@ -121,12 +198,12 @@ class Scanner { // SCAN!!!!
         while (isAlphaNumeric(peek())) {
             advance();
         }
-        String text = source.substring(start,current);
-        tokenType type = keywords.get(text);
+        symbol = Symbol.intern(source, start, current);
+        tokenType type = keywords.get(symbol);
         if (type == null) {
             type = tokenType.IDENTIFIER;
         }
-            addToken(type);
+            scanned = type;
       }
     
       // Check if next char is =
@@ -164,7 +241,7 @@ class Scanner { // SCAN!!!!
                 advance();
             }
         }
-        addToken(tokenType.NUMBER, Double.parseDouble(source.substring(start,current)));
+        scanned = tokenType.NUMBER;
       }
 
       // Check to see if there is a number after the .
@@ -202,17 +279,19 @@ class Scanner { // SCAN!!!!
         }
         // if close
         advance();
-        // Trim the surrounding quotes " "
-        String value = source.substring(start+1, current -1);
-        addToken(tokenType.STRING, value);
+        scanned = tokenType.STRING;
       }
 
-      // Output, grabs the lexemme and creates the token
+      // Output, an operator
       private void addToken(tokenType type){
-        addToken(type,null);
+            scanned = type;
       }
-      private void addToken (tokenType type, Object literal){ // String n Comments
-            String text = source.substring(start, current);
-            tokens.add(new token(type, text, literal, line));
+
+      // Only literals need the text of the source as a String
+      private String text(int start, int end){
+        if (source instanceof MappedSource) {
+            return ((MappedSource)source).text(start, end);
+        }
+        return source.subSequence(start, end).toString();
       }
 }
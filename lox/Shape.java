@@ -0,0 +1,44 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of a LoxInstance (what V8 calls a hidden class).
+// Instances only keep an Object[] of values and point at a Shape that knows
+// which index each field name lives at. Adding a field moves the instance to
+// the child shape for that name, and those transitions are shared, so all the
+// instances of a class that set their fields in the same order (pretty much
+// always, init does it) end up on the exact same Shape.
+final class Shape {
+    private final Map<Symbol, Integer> indices;
+    private final Map<Symbol, Shape> transitions = new HashMap<>();
+    // How many fields an instance with this shape has
+    final int size;
+
+    // The empty shape, every LoxClass has its own
+    Shape(){
+        this.indices = new HashMap<>();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, Symbol name){
+        this.indices = new HashMap<>(parent.indices);
+        this.indices.put(name, parent.size);
+        this.size = parent.size + 1;
+    }
+
+    // -1 when there is no such field
+    int indexOf(Symbol name){
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Shape withField(Symbol name){
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,184 @@
+package lox;
+
+import lox.ClosureCompiler.ExprNode;
+
+// A binary operator node that rewrites itself from the operand types it sees,
+// in the style of Truffle. The parent only holds on to this node, what runs
+// is the current specialization:
+//   uninitialized -> doubles / strings (picked on the first execution)
+//                 -> generic (on the first type miss, and it stays there)
+// so a loop doing "i + 1" only ever pays for the checks the numbers need.
+final class SpecializingBinary implements ExprNode {
+    private final token operator;
+    private final ExprNode left;
+    private final ExprNode right;
+    private ExprNode current = this::uninitialized;
+
+    SpecializingBinary(token operator, ExprNode left, ExprNode right){
+        this.operator = operator;
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    public Object eval(Environment env){
+        return current.eval(env);
+    }
+
+    private Object uninitialized(Environment env){
+        Object l = left.eval(env);
+        Object r = right.eval(env);
+        ExprNode specialized = null;
+        if (l instanceof Double && r instanceof Double) {
+            specialized = doubles();
+        } else if (Rope.isString(l) && Rope.isString(r)) {
+            specialized = strings();
+        }
+        current = specialized != null ? specialized : this::generic;
+        return Interpreter.binary(operator, l, r);
+    }
+
+    // Fast path for two numbers, null if the operator has none
+    private ExprNode doubles(){
+        switch (operator.type) {
+            case PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l + (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case MINUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l - (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l * (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case SLASH:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l / (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case LESS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l < (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case LESS_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l <= (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case GREATER:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l > (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l >= (double)r;
+                    }
+                    return deoptimize(l, r);
+                };
+            case EQUAL_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return l.equals(r);
+                    }
+                    return deoptimize(l, r);
+                };
+            case BANG_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return !l.equals(r);
+                    }
+                    return deoptimize(l, r);
+                };
+            default:
+                return null;
+        }
+    }
+
+    // Fast path for two strings, null if the operator has none
+    private ExprNode strings(){
+        switch (operator.type) {
+            case PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (Rope.isString(l) && Rope.isString(r)) {
+                        return Rope.concat(l, r);
+                    }
+                    return deoptimize(l, r);
+                };
+            case EQUAL_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (Rope.isString(l) && Rope.isString(r)) {
+                        return Interpreter.isEqual(l, r);
+                    }
+                    return deoptimize(l, r);
+                };
+            case BANG_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (Rope.isString(l) && Rope.isString(r)) {
+                        return !Interpreter.isEqual(l, r);
+                    }
+                    return deoptimize(l, r);
+                };
+            default:
+                return null;
+        }
+    }
+
+    // Type miss: this site is polymorphic, stop guessing
+    private Object deoptimize(Object l, Object r){
+        current = this::generic;
+        return Interpreter.binary(operator, l, r);
+    }
+
+    // The plain rules, shared with the tree-walker
+    private Object generic(Environment env){
+        return Interpreter.binary(operator, left.eval(env), right.eval(env));
+    }
+}
@@ -24,6 +24,8 @@ abstract class Stmt{
         }
 
     final List<Stmt> statements;
+    int frameSize;
+    FramePool frames;
 }
  static class Class extends Stmt{
     Class(token name,Expr.Variable superclass,List<Stmt.Function> methods) {
@@ -40,6 +42,8 @@ abstract class Stmt{
     final token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+    int slot;
+    boolean captured;
 }
  static class Expression extends Stmt{
     Expression(Expr expression) {
@@ -68,9 +72,15 @@ abstract class Stmt{
     final token name;
     final List<token> params;
     final List<Stmt> body;
+    int slot;
+    int frameSize;
+    FramePool frames;
+    Capture[] captures;
+    int[] boxed;
+    boolean captured;
 }
  static class If extends Stmt{
-    If(Expr condition, Stmt thenBranch,Stmt elseBranch) {
+    If(Expr condition,Stmt thenBranch,Stmt elseBranch) {
     this.condition= condition;
     this.thenBranch= thenBranch;
     this.elseBranch= elseBranch;
@@ -82,7 +92,7 @@ abstract class Stmt{
         }
 
     final Expr condition;
-    final  Stmt thenBranch;
+    final Stmt thenBranch;
     final Stmt elseBranch;
 }
  static class Print extends Stmt{
@@ -110,6 +120,7 @@ abstract class Stmt{
 
     final token keyword;
     final Expr value;
+    boolean tailCall;
 }
  static class Var extends Stmt{
     Var(token name,Expr initializer) {
@@ -124,6 +135,8 @@ abstract class Stmt{
 
     final token name;
     final Expr initializer;
+    int slot;
+    boolean captured;
 }
  static class While extends Stmt{
     While(Expr condition,Stmt body) {
@@ -138,6 +151,7 @@ abstract class Stmt{
 
     final Expr condition;
     final Stmt body;
+    boolean counted;
 }
 
     abstract <R> R accept(Visitor<R> visitor);
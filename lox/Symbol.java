@@ -0,0 +1,113 @@
+package lox;
+
+import java.util.Arrays;
+
+// An interned identifier. There is only ever one Symbol per name, so two
+// names are the same exactly when their Symbols are ==, and the hash is just
+// the id. Ids count up from 0 so they can index arrays too (the globals do).
+// The Scanner interns straight from the source, so each distinct name gets
+// one String no matter how many times it shows up.
+final class Symbol {
+    final String name;
+    final int id;
+    private final int hash;
+
+    private Symbol(String name, int id, int hash){
+        this.name = name;
+        this.id = id;
+        this.hash = hash;
+    }
+
+    @Override
+    public int hashCode(){
+        return id;
+    }
+
+    @Override
+    public String toString(){
+        return name;
+    }
+
+    // Open addressing on the characters, always at most half full
+    private static Symbol[] table = new Symbol[256];
+    private static int count = 0;
+    // Every symbol by id
+    private static Symbol[] symbols = new Symbol[128];
+
+    static final Symbol INIT = intern("init");
+    static final Symbol THIS = intern("this");
+    static final Symbol SUPER = intern("super");
+
+    static Symbol intern(String name){
+        return intern(name, 0, name.length());
+    }
+
+    static Symbol intern(CharSequence source, int start, int end){
+        int hash = hash(source, start, end);
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != null) {
+            Symbol symbol = table[i];
+            if (symbol.hash == hash && matches(symbol.name, source, start, end)) {
+                return symbol;
+            }
+            i = (i + 1) & mask;
+        }
+
+        Symbol symbol = new Symbol(source.subSequence(start, end).toString(), count++, hash);
+        table[i] = symbol;
+        if (symbol.id == symbols.length) {
+            symbols = Arrays.copyOf(symbols, symbols.length * 2);
+        }
+        symbols[symbol.id] = symbol;
+        if (count * 2 > table.length) {
+            grow();
+        }
+        return symbol;
+    }
+
+    static Symbol of(int id){
+        return symbols[id];
+    }
+
+    // How many symbols there are, every id is below this
+    static int count(){
+        return count;
+    }
+
+    private static int hash(CharSequence source, int start, int end){
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        // Spread the bits, names tend to only differ at the end
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence source, int start, int end){
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void grow(){
+        Symbol[] old = table;
+        table = new Symbol[old.length * 2];
+        int mask = table.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol != null) {
+                int i = symbol.hash & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = symbol;
+            }
+        }
+    }
+}
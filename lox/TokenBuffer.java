@@ -0,0 +1,95 @@
+package lox;
+
+import java.util.Arrays;
+
+// The tokens between the Scanner and the Parser, as parallel arrays instead
+// of a token object each: a token is just an index, its type, where it starts,
+// how long it is, its line and the id of its Symbol (if its a name) sit in
+// primitive arrays. The Parser asks for
+// the object (token()) only when it keeps one in the tree, so the ( ) ; { }
+// and most keywords never become objects at all.
+// It scans ahead a few dozen tokens at a time, and release() drops the
+// tokens of declarations that are done, so it stays small.
+final class TokenBuffer {
+    private static final tokenType[] TYPES = tokenType.values();
+
+    private final Scanner scanner;
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] lines = new int[64];
+    private int[] symbols = new int[64];
+    // Index of the token in slot 0, and how many are buffered from there
+    private int first = 0;
+    private int count = 0;
+
+    TokenBuffer(Scanner scanner){
+        this.scanner = scanner;
+    }
+
+    tokenType type(int index){
+        // slot() first, it can grow the arrays
+        int slot = slot(index);
+        return TYPES[types[slot]];
+    }
+
+    token token(int index){
+        int slot = slot(index);
+        Symbol symbol = symbols[slot] < 0 ? null : Symbol.of(symbols[slot]);
+        return scanner.token(TYPES[types[slot]], starts[slot], starts[slot] + lengths[slot], lines[slot], symbol);
+    }
+
+    // The Parser wont ask for anything before index again
+    void release(int index){
+        int drop = index - first;
+        if (drop <= 0) {
+            return;
+        }
+        count -= drop;
+        System.arraycopy(types, drop, types, 0, count);
+        System.arraycopy(starts, drop, starts, 0, count);
+        System.arraycopy(lengths, drop, lengths, 0, count);
+        System.arraycopy(lines, drop, lines, 0, count);
+        System.arraycopy(symbols, drop, symbols, 0, count);
+        first = index;
+    }
+
+    private int slot(int index){
+        int slot = index - first;
+        // Kept tiny so it inlines into the Parser, scanning is the rare case
+        return slot < count ? slot : scanTo(index);
+    }
+
+    // Scans until index is buffered, and on to fill the arrays while at it:
+    // scanning runs of tokens in one tight loop is cheaper than one per call.
+    // Past the end every index is EOF.
+    private int scanTo(int index){
+        if (index - first >= types.length) {
+            grow();
+        }
+        while (count < types.length && !done()) {
+            tokenType type = scanner.scan();
+            types[count] = (byte)type.ordinal();
+            starts[count] = scanner.start();
+            lengths[count] = scanner.end() - scanner.start();
+            lines[count] = scanner.line();
+            Symbol symbol = scanner.symbol();
+            symbols[count] = symbol == null ? -1 : symbol.id;
+            count++;
+        }
+        return Math.min(index - first, count - 1);
+    }
+
+    private boolean done(){
+        return count > 0 && types[count - 1] == tokenType.EOF.ordinal();
+    }
+
+    private void grow(){
+        int size = types.length * 2;
+        types = Arrays.copyOf(types, size);
+        starts = Arrays.copyOf(starts, size);
+        lengths = Arrays.copyOf(lengths, size);
+        lines = Arrays.copyOf(lines, size);
+        symbols = Arrays.copyOf(symbols, size);
+    }
+}
@@ -0,0 +1,646 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static lox.OpCode.*;
+
+// Stack based virtual machine running what BytecodeCompiler produces.
+// Same language, same output and same runtime errors as the Interpreter,
+// but one loop switching on bytes instead of visiting nodes.
+class VM {
+    private static final int FRAMES_MAX = 100000;
+
+    // Compiled function, shared by every closure made from it
+    static class Function {
+        final String name;
+        final Chunk chunk = new Chunk();
+        int arity = 0;
+        int upvalueCount = 0;
+
+        Function(String name){
+            this.name = name;
+        }
+
+        @Override
+        public String toString(){
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class Closure {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function){
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString(){
+            return function.toString();
+        }
+    }
+
+    // Points at a stack slot while the variable is alive there,
+    // then holds the value itself once that slot goes away
+    static class Upvalue {
+        int slot;
+        Object closed;
+        Upvalue next; // open upvalues, sorted by slot, highest first
+
+        Upvalue(int slot, Upvalue next){
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    static class Klass {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+
+        Klass(String name){
+            this.name = name;
+        }
+
+        @Override
+        public String toString(){
+            return name;
+        }
+    }
+
+    static class Instance {
+        final Klass klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(Klass klass){
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString(){
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method){
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString(){
+            return method.toString();
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base; // stack index of slot 0
+    }
+
+    private final Map<String, Object> globals = new HashMap<>();
+    private Object[] stack = new Object[1024];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+
+    VM(){
+        globals.put("clock", new LoxCallable() {
+            @Override
+            public int arity() {return 0;}
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments){
+                return (double)System.currentTimeMillis()/1000.0;
+            }
+            @Override
+            public String toString(){return "<native fn>";}
+        });
+    }
+
+    void interpret(List<Stmt> stmts){
+        Function script = new BytecodeCompiler().compile(stmts);
+        if (script == null) {
+            return;
+        }
+
+        Closure closure = new Closure(script);
+        push(closure);
+        try {
+            callClosure(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            jLox.runtimeError(error);
+            // Start clean for the next REPL line
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run(){
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case CONSTANT:
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case NIL:
+                    push(null);
+                    break;
+                case TRUE:
+                    push(true);
+                    break;
+                case FALSE:
+                    push(false);
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    break;
+                case GET_LOCAL:
+                    push(stack[base + (code[ip++] & 0xff)]);
+                    break;
+                case SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case GET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case DEFINE_GLOBAL:
+                    globals.put((String)constants[readShort(code, ip)], pop());
+                    ip += 2;
+                    break;
+                case SET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable: '" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    break;
+                }
+                case GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed);
+                    break;
+                }
+                case SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case GET_PROPERTY: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = stack[sp - 1];
+                    if (!(object instanceof Instance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have properties.");
+                    }
+                    Instance instance = (Instance)object;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    Closure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new BoundMethod(instance, method);
+                    break;
+                }
+                case SET_PROPERTY: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = stack[sp - 2];
+                    if (!(object instanceof Instance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    Object value = pop();
+                    ((Instance)object).fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case GET_SUPER: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Klass superclass = (Klass)pop();
+                    Closure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new BoundMethod(stack[sp - 1], method);
+                    break;
+                }
+                case EQUAL: {
+                    Object b = pop();
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object b = pop();
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL: {
+                    byte op = code[ip - 1];
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers!");
+                    }
+                    double left = (Double)a;
+                    double right = (Double)b;
+                    boolean result;
+                    if (op == GREATER) {
+                        result = left > right;
+                    } else if (op == GREATER_EQUAL) {
+                        result = left >= right;
+                    } else if (op == LESS) {
+                        result = left < right;
+                    } else {
+                        result = left <= right;
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case ADD: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    Object result;
+                    if (a instanceof Double && b instanceof Double) {
+                        result = (Double)a + (Double)b;
+                    } else if (a instanceof String || b instanceof String) {
+                        result = Interpreter.stringify(a) + Interpreter.stringify(b);
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings!");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE: {
+                    byte op = code[ip - 1];
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers!");
+                    }
+                    double left = (Double)a;
+                    double right = (Double)b;
+                    double result;
+                    if (op == SUBTRACT) {
+                        result = left - right;
+                    } else if (op == MULTIPLY) {
+                        result = left * right;
+                    } else {
+                        result = left / right;
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number!");
+                    }
+                    stack[sp - 1] = -(Double)value;
+                    break;
+                }
+                case PRINT:
+                    System.out.println(Interpreter.stringify(pop()));
+                    break;
+                case JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                    break;
+                case LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+                case CALL:
+                case INVOKE:
+                case SUPER_INVOKE: {
+                    byte op = code[ip - 1];
+                    String name = null;
+                    if (op != CALL) {
+                        name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                    }
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int callerCount = frameCount;
+
+                    if (op == CALL) {
+                        callValue(stack[sp - argCount - 1], argCount);
+                    } else if (op == INVOKE) {
+                        invoke(name, argCount);
+                    } else {
+                        Klass superclass = (Klass)pop();
+                        invokeFromClass(superclass, name, argCount);
+                    }
+
+                    // "return f(...)": the caller has nothing left to do after this
+                    // call, so the callee takes over its frame and stack slots.
+                    // That way tail recursion doesnt run into FRAMES_MAX.
+                    if (frameCount > callerCount && code[ip] == RETURN) {
+                        replaceCaller(base);
+                    }
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case CLOSURE: {
+                    Function function = (Function)constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure closure = new Closure(function);
+                    push(closure);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case RETURN: {
+                    Object result = pop();
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    if (frameCount == 0) {
+                        // Pop the script closure too
+                        stack[base] = null;
+                        sp = 0;
+                        return;
+                    }
+                    sp = base;
+                    push(result);
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case CLASS:
+                    push(new Klass((String)constants[readShort(code, ip)]));
+                    ip += 2;
+                    break;
+                case INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof Klass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    // Classes cant change after this, so copying the methods down is safe
+                    Klass subclass = (Klass)pop();
+                    subclass.methods.putAll(((Klass)superclass).methods);
+                    break;
+                }
+                case METHOD: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure method = (Closure)pop();
+                    ((Klass)stack[sp - 1]).methods.put(name, method);
+                    break;
+                }
+                default:
+                    frame.ip = ip;
+                    throw error("Unknown opcode " + code[ip - 1] + ".");
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip){
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value){
+        stack[sp++] = value;
+    }
+
+    private Object pop(){
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    // Calls
+
+    private void callValue(Object callee, int argCount){
+        if (callee instanceof Closure) {
+            callClosure((Closure)callee, argCount);
+            return;
+        }
+        if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod)callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            callClosure(bound.method, argCount);
+            return;
+        }
+        if (callee instanceof Klass) {
+            Klass klass = (Klass)callee;
+            stack[sp - argCount - 1] = new Instance(klass);
+            Closure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                callClosure(initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+        if (callee instanceof LoxCallable) {
+            callNative((LoxCallable)callee, argCount);
+            return;
+        }
+        throw error("Can only call funcions and classes.");
+    }
+
+    private void invoke(String name, int argCount){
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof Instance)) {
+            throw error("Only instances have properties.");
+        }
+        Instance instance = (Instance)receiver;
+
+        // A field holding a function shadows any method
+        Object value = instance.fields.get(name);
+        if (value != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = value;
+            callValue(value, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(Klass klass, String name, int argCount){
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        callClosure(method, argCount);
+    }
+
+    private void callClosure(Closure closure, int argCount){
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        // A frame never needs more than 256 locals plus its temporaries
+        if (sp + 512 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+    }
+
+    // Slides the frame just pushed down over its caller (which starts at callerBase)
+    private void replaceCaller(int callerBase){
+        CallFrame callee = frames[frameCount - 1];
+        CallFrame caller = frames[frameCount - 2];
+        closeUpvalues(callerBase);
+        int count = sp - callee.base;
+        System.arraycopy(stack, callee.base, stack, callerBase, count);
+        Arrays.fill(stack, callerBase + count, sp, null);
+        sp = callerBase + count;
+        callee.base = callerBase;
+        // Swap them so the caller's CallFrame object gets reused later
+        frames[frameCount - 2] = callee;
+        frames[frameCount - 1] = caller;
+        frameCount--;
+    }
+
+    // Natives are plain LoxCallables, they never look at the interpreter
+    private void callNative(LoxCallable function, int argCount){
+        if (argCount != function.arity()) {
+            throw error("Expected " + function.arity() + " arguments but got " + argCount + ".");
+        }
+        List<Object> arguments = new ArrayList<>(argCount);
+        for (int i = sp - argCount; i < sp; i++) {
+            arguments.add(stack[i]);
+        }
+        Object result = function.call(null, arguments);
+        Arrays.fill(stack, sp - argCount - 1, sp, null);
+        sp -= argCount + 1;
+        push(result);
+    }
+
+    // Upvalues
+
+    private Upvalue captureUpvalue(int slot){
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        Upvalue created = new Upvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last){
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // Errors
+
+    // The line comes from the instruction the current frame stopped at
+    private RuntimeError error(String message){
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[Math.max(frame.ip - 1, 0)];
+        return new RuntimeError(new token(tokenType.EOF, "", null, line), message);
+    }
+}
@@ -4,33 +4,82 @@ import java.io.BufferedReader;
 import java.io.IOError;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class jLox {
     
     // Running interpreter
     private static final Interpreter interpreter = new Interpreter();
+    // Bytecode backend, only used with --vm
+    private static VM vm = null;
+    // Compiles the tree into lambdas before running it, only used with --compile or --specialize
+    private static ClosureCompiler compiler = null;
+    // --dump-ast prints the optimized tree instead of running it
+    private static boolean dumpAst = false;
+    // --stream runs each top level declaration as soon as its parsed
+    private static boolean stream = false;
+    // Shared by every run() so the REPL and --stream pieces all count, made
+    // once runFile or runPrompt knows if it gets the whole program
+    private static Optimizer optimizer;
 
     static boolean hadError = false; // Restart  had error
     static boolean hadRuntimeError = false; // Helps to tell what line were
     public static void main(String[] args) throws IOException {
-        if (args.length >1) {
-            System.out.println("Usage: Lox [script]");
-            System.out.println(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        // Options come before the script
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--")) {
+            switch (args[first]) {
+                case "--vm":
+                    vm = new VM();
+                    break;
+                case "--compile":
+                    compiler = new ClosureCompiler(interpreter, false);
+                    break;
+                case "--specialize":
+                    compiler = new ClosureCompiler(interpreter, true);
+                    break;
+                case "--jit":
+                    interpreter.jit = new JvmCompiler();
+                    break;
+                case "--dump-ast":
+                    dumpAst = true;
+                    break;
+                case "--stream":
+                    stream = true;
+                    break;
+                default:
+                    usage();
+            }
+            first++;
+        }
+
+        if (args.length - first >1) {
+            usage();
+        } else if (args.length - first == 1) {
+            runFile(args[first]);
         }else {
             runPrompt();
         }
     }
 
+    private static void usage(){
+        System.out.println("Usage: Lox [--vm | --compile | --specialize | --jit] [--dump-ast] [--stream] [script]");
+        System.exit(64);
+    }
+
     // Run jLox giving a path to file so that it reads and executes it
     private static void runFile(String path) throws IOException{
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes,Charset.defaultCharset()));
+        // Mapped, not read: the Scanner reads the file right out of the page cache
+        CharSequence source = MappedSource.map(Paths.get(path), Charset.defaultCharset());
+        optimizer = new Optimizer(!stream);
+        if (stream) {
+            runStream(source);
+        } else {
+            run(source);
+        }
         if (hadError) {
             System.exit(65); // Indicate and error in the exit code
         }
@@ -43,6 +92,7 @@ public class jLox {
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        optimizer = new Optimizer(false);
         for (;;){
             System.out.print("> ");
             String line = reader.readLine(); // Reads an input normally typin ctrl+D return EOF
@@ -54,11 +104,8 @@ public class jLox {
         }
     }
 
-    private static void run(String source){
-        Scanner scanner = new Scanner(source);
-        List<token> tokens = scanner.scanTokens(); // Will create a scanner class later on
-
-        Parser parser = new Parser(tokens);
+    private static void run(CharSequence source){
+        Parser parser = new Parser(new TokenBuffer(new Scanner(source)));
         List<Stmt> stmts = parser.parse();
 
         // Stop if there was a syntax error.
@@ -67,7 +114,7 @@ public class jLox {
             System.out.println("Parser error occurred.");
             return;
         }
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(stmts);
 
         // Gotta check again cause need to skip interpret.
@@ -76,7 +123,59 @@ public class jLox {
             return;
         }
 
-        interpreter.interpret(stmts);
+        execute(stmts);
+    }
+
+    // Like run() but a declaration at a time, so memory is bounded by the
+    // biggest declaration and not the whole script, and it starts running
+    // right away. After a syntax or resolve error nothing else runs but the
+    // rest still gets parsed to report its errors too. A runtime error stops it all.
+    private static void runStream(CharSequence source){
+        Parser parser = new Parser(new TokenBuffer(new Scanner(source)));
+        List<Stmt> stmts = new ArrayList<>(1);
+        String failure = null;
+        while (parser.hasNext() && !hadRuntimeError) {
+            Stmt stmt = parser.next();
+            if (failure == null && hadError) {
+                failure = "Parser error occurred.";
+            }
+            if (failure != null) {
+                continue;
+            }
+            stmts.add(stmt);
+            new Resolver().resolve(stmts);
+            if (hadError) {
+                failure = "Resolver error occured.";
+            } else {
+                execute(stmts);
+            }
+            stmts.clear();
+        }
+        if (failure != null) {
+            System.out.println(failure);
+        }
+    }
+
+    private static void execute(List<Stmt> stmts){
+        // The optimizer builds new nodes, those need their slots and depths too
+        stmts = optimizer.optimize(stmts);
+        new Resolver().resolve(stmts);
+
+        if (dumpAst) {
+            AstPrinter printer = new AstPrinter();
+            for (Stmt stmt : stmts) {
+                System.out.println(printer.print(stmt));
+            }
+            return;
+        }
+
+        if (vm != null) {
+            vm.interpret(stmts);
+        } else if (compiler != null) {
+            compiler.interpret(stmts);
+        } else {
+            interpreter.interpret(stmts);
+        }
     }
 
     // Error Handling
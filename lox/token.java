@@ -4,12 +4,25 @@ class token {
     final String lexemme;
     final Object literal;
     final int line;
+    // Interned name for identifiers, this and super, null for everything else
+    final Symbol symbol;
 
     token(tokenType type, String lexemme, Object literal, int line){
         this.type = type;
         this.lexemme = lexemme;
         this.literal = literal;
         this.line = line;
+        boolean named = type == tokenType.IDENTIFIER || type == tokenType.THIS || type == tokenType.SUPER;
+        this.symbol = named ? Symbol.intern(lexemme) : null;
+    }
+
+    // Identifiers and keywords, the Scanner already interned the text
+    token(tokenType type, Symbol symbol, int line){
+        this.type = type;
+        this.lexemme = symbol.name;
+        this.literal = null;
+        this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString(){
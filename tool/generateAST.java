@@ -16,30 +16,31 @@ public class generateAST {
         String outputDir = args[0];
 
         defineAST(outputDir, "Expr", Arrays.asList(
-        "Assign   : token name,Expr value",
+        "Assign   : token name,Expr value : int depth,int slot,Cell global",
         "Binary   : Expr left,token operator,Expr right",
         "Call     : Expr callee,token paren,List<Expr> arguments",
-        "Get      : Expr object,token name",
+        "Get      : Expr object,token name : InlineCache cache = new InlineCache()",
         "Grouping : Expr expression",
+        "Inline   : Call call,token function,Expr body : Cell global",
         "Literal  : Object value",
         "Logical  : Expr left,token operator,Expr right",
-        "Set      : Expr object,token name,Expr value",
-        "Super    : token keyword,token method",
-        "This     : token keyword",
+        "Set      : Expr object,token name,Expr value : InlineCache cache = new InlineCache()",
+        "Super    : token keyword,token method : int depth,int slot,int thisSlot,InlineCache cache = new InlineCache()",
+        "This     : token keyword : int depth,int slot",
         "Unary    : token operator,Expr right",
-        "Variable : token name"
+        "Variable : token name : int depth,int slot,Cell global"
         ));
 
         defineAST(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
-            "Class      : token name,Expr.Variable superclass,List<Stmt.Function> methods",
+            "Block      : List<Stmt> statements : int frameSize,FramePool frames",
+            "Class      : token name,Expr.Variable superclass,List<Stmt.Function> methods : int slot,boolean captured",
             "Expression : Expr expression",
-            "Function   : token name,List<token> params,"+ "List<Stmt> body",
-            "If         : Expr condition, Stmt thenBranch," + "Stmt elseBranch",
+            "Function   : token name,List<token> params,"+ "List<Stmt> body : int slot,int frameSize,FramePool frames,Capture[] captures,int[] boxed,boolean captured",
+            "If         : Expr condition,Stmt thenBranch," + "Stmt elseBranch",
             "Print      : Expr expression",
-            "Return     : token keyword,Expr value",
-            "Var        : token name,Expr initializer",
-            "While      : Expr condition,Stmt body"
+            "Return     : token keyword,Expr value : boolean tailCall",
+            "Var        : token name,Expr initializer : int slot,boolean captured",
+            "While      : Expr condition,Stmt body : boolean counted"
         ));
     }
     // This needs to output the base Expr.java
@@ -54,10 +55,13 @@ public class generateAST {
         defineVisitor(writer, basename, types);
 
         // define the AST classes
+        // An optional third part lists mutable fields the Resolver fills in later
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, basename, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            String resolved = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, basename, className, fields, resolved);
         }
         // the base accept method
         writer.println();
@@ -79,7 +83,7 @@ public class generateAST {
         writer.println(" }");
     }
 
-    private static void defineType( PrintWriter writer, String baseName, String className, String fieldList){
+    private static void defineType( PrintWriter writer, String baseName, String className, String fieldList, String resolvedList){
         // Creating class for Expr:
         writer.println(" static class "+ className + " extends " + baseName +"{");
 
@@ -105,6 +109,12 @@ public class generateAST {
         for (String field : fields) {
             writer.println("    final "+ field + ";");
         }
+        // Not final: filled in after parsing (Resolver results, inline caches)
+        if (resolvedList != null) {
+            for (String field : resolvedList.split(",")) {
+                writer.println("    "+ field + ";");
+            }
+        }
         writer.println("}"); // closing class
     }
 }